@@ -143,6 +143,75 @@ public class Main {
 }
 ```
 
+For parallel streams, `ConcreteIterator` can hand its remaining elements to the `ListSpliterator` from the Iterator Pattern notes. That spliterator halves its index range on every split and reports `SIZED | SUBSIZED`:
+
+```java
+class ConcreteIterator<T> implements Iterator<T> {
+    private List<T> elements;
+    private int position = 0;
+
+    // hasNext() and next() as above
+
+    public Spliterator<T> spliterator() {
+        Spliterator<T> rest = new ListSpliterator<>(elements, position, elements.size());
+        position = elements.size();
+        return rest;
+    }
+}
+
+long longNames = StreamSupport.stream(new ConcreteIterator<>(names).spliterator(), true)
+        .filter(name -> name.length() > 3)
+        .count();
+```
+
+It can also take the bulk `nextBatch`/`forEachRemaining` operations from the Iterator Pattern notes. `Iterator<T>` above gains them as default methods, and `ConcreteIterator` overrides both. A tight loop then makes one call per batch instead of two per element:
+
+```java
+interface Iterator<T> {
+    boolean hasNext();
+    T next();
+
+    default int nextBatch(T[] dst) {
+        int n = 0;
+        while (n < dst.length && hasNext()) {
+            dst[n++] = next();
+        }
+        return n;
+    }
+
+    default void forEachRemaining(Consumer<? super T> action) {
+        while (hasNext()) {
+            action.accept(next());
+        }
+    }
+}
+
+class ConcreteIterator<T> implements Iterator<T> {
+    // fields, hasNext() and next() as above
+
+    @Override
+    public int nextBatch(T[] dst) {
+        int start = position;
+        int n = Math.min(dst.length, elements.size() - start);
+        for (int i = 0; i < n; i++) {
+            dst[i] = elements.get(start + i);
+        }
+        position = start + n;
+        return n;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        List<T> elements = this.elements;
+        int size = elements.size();
+        for (int i = position; i < size; i++) {
+            action.accept(elements.get(i));
+        }
+        position = size;
+    }
+}
+```
+
 These additional examples showcase the Chain of Responsibility, Interpreter, and Iterator patterns. Each pattern addresses specific design challenges and contributes to code organization and maintainability.
 
 
@@ -220,3 +220,395 @@ The Observer pattern is commonly used in event-driven programming and GUI compon
 
 
   
+
+
+
+----------------------------------------------------------------------------------------------------------------------------------
+
+
+
+Measuring Observer Notification Latency
+
+The `notifyObservers` loop above calls every observer one after another on the publishing thread. If one observer does something slow in `update` (a blocking write, a lock, a big log statement), every publish gets slower. The plain pattern gives no hint which observer is responsible. We can fix that without changing the `Observer` or `Subject` interfaces by letting the subject time each `update` call and record the duration in a small histogram.
+
+The idea works like this:
+
+1. **LatencyHistogram**: A fixed array of counters, HDR-style. Small values get one bucket each. Larger values get 32 sub-buckets per power of two, so every recorded value keeps about 3% precision. Recording is one array increment with no allocation, which means it can stay enabled in production.
+
+2. **HistogramSnapshot**: An immutable copy of the counters. Percentiles (p50, p99, max) are read from the snapshot, so readers never disturb the hot path.
+
+3. **InstrumentedSubject**: A `Subject` that keeps one histogram per observer and one for the whole publish. The same `System.nanoTime()` reading serves as both the end of one observer's call and the start of the next.
+
+4. **Slow-subscriber detection**: The subject can list the observers whose p99 is above a threshold.
+
+```java
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear latency histogram (values in nanoseconds)
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // 32
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+    public HistogramSnapshot snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new HistogramSnapshot(copy, totalCount.get(), maxValue.get());
+    }
+
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    // Smallest value that falls into the given bucket
+    static long valueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return subBucket << shift;
+    }
+}
+
+// Immutable view of a histogram at one point in time
+class HistogramSnapshot {
+    private final long[] counts;
+    private final long totalCount;
+    private final long maxValue;
+
+    HistogramSnapshot(long[] counts, long totalCount, long maxValue) {
+        this.counts = counts;
+        this.totalCount = totalCount;
+        this.maxValue = maxValue;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMaxValue() {
+        return maxValue;
+    }
+
+    public long percentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * totalCount);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.valueOf(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + totalCount
+                + " p50=" + percentile(50) + "ns"
+                + " p99=" + percentile(99) + "ns"
+                + " max=" + maxValue + "ns";
+    }
+}
+
+// ConcreteSubject that times every Observer.update call
+class InstrumentedSubject implements Subject {
+    private static class ObserverEntry {
+        final Observer observer;
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        ObserverEntry(Observer observer) {
+            this.observer = observer;
+        }
+    }
+
+    private final List<ObserverEntry> entries = new CopyOnWriteArrayList<>();
+    private final LatencyHistogram publishHistogram = new LatencyHistogram();
+    private String state;
+
+    public void setState(String state) {
+        this.state = state;
+        notifyObservers("State changed to: " + state);
+    }
+
+    @Override
+    public void attach(Observer observer) {
+        entries.add(new ObserverEntry(observer));
+    }
+
+    @Override
+    public void detach(Observer observer) {
+        entries.removeIf(entry -> entry.observer == observer);
+    }
+
+    @Override
+    public void notifyObservers(String message) {
+        long publishStart = System.nanoTime();
+        long start = publishStart;
+        for (ObserverEntry entry : entries) {
+            entry.observer.update(message);
+            long end = System.nanoTime();
+            entry.histogram.record(end - start);
+            start = end;
+        }
+        publishHistogram.record(start - publishStart);
+    }
+
+    public HistogramSnapshot publishSnapshot() {
+        return publishHistogram.snapshot();
+    }
+
+    public Map<Observer, HistogramSnapshot> observerSnapshots() {
+        Map<Observer, HistogramSnapshot> snapshots = new LinkedHashMap<>();
+        for (ObserverEntry entry : entries) {
+            snapshots.put(entry.observer, entry.histogram.snapshot());
+        }
+        return snapshots;
+    }
+
+    public List<Observer> slowObservers(long p99ThresholdNanos) {
+        List<Observer> slow = new ArrayList<>();
+        for (ObserverEntry entry : entries) {
+            if (entry.histogram.snapshot().percentile(99) > p99ThresholdNanos) {
+                slow.add(entry.observer);
+            }
+        }
+        return slow;
+    }
+}
+
+// An observer that blocks on every update
+class SlowObserver implements Observer {
+    @Override
+    public void update(String message) {
+        try {
+            Thread.sleep(2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SlowObserver";
+    }
+}
+
+// Example usage
+public class Main {
+    public static void main(String[] args) {
+        InstrumentedSubject subject = new InstrumentedSubject();
+        subject.attach(new ConcreteObserver("Observer 1"));
+        subject.attach(new SlowObserver());
+
+        for (int i = 0; i < 100; i++) {
+            subject.setState("State " + i);
+        }
+
+        System.out.println("Publish latency: " + subject.publishSnapshot());
+        subject.observerSnapshots().forEach((observer, snapshot) ->
+                System.out.println(observer + ": " + snapshot));
+
+        // Anything above 1 ms at p99 is reported
+        System.out.println("Slow observers: " + subject.slowObservers(1_000_000));
+    }
+}
+```
+
+In this code:
+
+- `LatencyHistogram` maps a value to a bucket with one `numberOfLeadingZeros` and a shift. Recording is a single `AtomicLongArray` increment, so there is no locking and no allocation per call.
+- `HistogramSnapshot` copies the counters once. Percentile and max queries then run on the copy.
+- `InstrumentedSubject` keeps each observer and its histogram together in one `ObserverEntry`, so the notify loop needs no map lookup. The `CopyOnWriteArrayList` allows observers to be attached or detached while a publish is running.
+- `slowObservers` compares each observer's p99 with a threshold. That shows which subscriber slows down every publish. The whole-publish histogram shows how much that observer costs the subject in total.
+
+Two `System.nanoTime()` calls per observer would double the timing overhead, so the loop reads the clock once per observer. With many tiny observers, the clock read (about 20-30 ns) is still the main cost. In that case, time every Nth publish instead of every publish.
+
+
+
+----------------------------------------------------------------------------------------------------------------------------------
+
+
+
+Primitive-Specialized Observers
+
+The `Subject` in the overview notes keeps an `int` state. The `ConcreteSubject` above has the same shape, but it turns every change into a `"State changed to: " + state` message. So each notification builds a new `String` before any observer runs, and a generic `Observer<Integer>` would box the value. For a subject that publishes millions of changes per second, that garbage costs more than the observers themselves.
+
+The fix is the same one the JDK uses for `IntConsumer` and `IntStream`: add a primitive variant of the observer contract. Then pass the raw `int` all the way through.
+
+1. **IntObserver**: The observer receives an `int` directly. Only observers that really need text build it.
+
+2. **IntSubject**: The subject stores observers in a plain array. Notification is an indexed loop over that array, so it creates no `Iterator`, no boxed value and no message string.
+
+3. **Copy-on-write attach/detach**: Adding or removing an observer replaces the array. Registration is rare; the publish path only reads one field.
+
+```java
+import java.util.Arrays;
+
+// Primitive observer contract
+interface IntObserver {
+    void update(int state);
+}
+
+// Subject that dispatches raw ints
+class IntSubject {
+    private static final IntObserver[] NO_OBSERVERS = new IntObserver[0];
+
+    private volatile IntObserver[] observers = NO_OBSERVERS;
+    private int state;
+
+    public int getState() {
+        return state;
+    }
+
+    public void setState(int state) {
+        this.state = state;
+        notifyAllObservers(state);
+    }
+
+    public synchronized void attach(IntObserver observer) {
+        IntObserver[] current = observers;
+        IntObserver[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = observer;
+        observers = updated;
+    }
+
+    public synchronized void detach(IntObserver observer) {
+        IntObserver[] current = observers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == observer) {
+                IntObserver[] updated = new IntObserver[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                observers = updated;
+                return;
+            }
+        }
+    }
+
+    private void notifyAllObservers(int state) {
+        IntObserver[] snapshot = observers;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i].update(state);
+        }
+    }
+}
+
+// ConcreteObserver that only keeps numbers
+class ThresholdObserver implements IntObserver {
+    private final int threshold;
+    private long crossings;
+
+    public ThresholdObserver(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void update(int state) {
+        if (state > threshold) {
+            crossings++;
+        }
+    }
+
+    public long getCrossings() {
+        return crossings;
+    }
+}
+
+// Adapter for existing String observers; only these pay for the message
+class StringObserverAdapter implements IntObserver {
+    private final Observer delegate;
+
+    public StringObserverAdapter(Observer delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void update(int state) {
+        delegate.update("State changed to: " + state);
+    }
+}
+```
+
+To check the "no allocation per notification" claim, measure bytes allocated per operation instead of timing the loop. JMH's GC profiler reports this as `gc.alloc.rate.norm`:
+
+```java
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IntSubjectBenchmark {
+    private ConcreteSubject stringSubject;
+    private IntSubject intSubject;
+    private int next;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        stringSubject = new ConcreteSubject();
+        intSubject = new IntSubject();
+        for (int i = 0; i < 4; i++) {
+            stringSubject.attach(blackhole::consume);
+            intSubject.attach(blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public void stringSubject() {
+        stringSubject.setState(Integer.toString(next++));
+    }
+
+    @Benchmark
+    public void intSubject() {
+        intSubject.setState(next++);
+    }
+}
+```
+
+Run it with the GC profiler:
+
+```
+java -jar target/benchmarks.jar IntSubjectBenchmark -prof gc
+```
+
+`intSubject` should report `gc.alloc.rate.norm` at about 0 B/op. `stringSubject` pays for the state string, the message concatenation and the `ArrayList` iterator on every call. Without JMH, you can make the same check in a plain test: read `com.sun.management.ThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId())` before and after a few million `setState` calls, after a warm-up so the JIT has compiled the loop.
+
+In this code:
+
+- `IntObserver` is a separate interface rather than `Observer<Integer>`. Generics would force boxing for values outside the `Integer` cache.
+- `IntSubject` reads the `volatile` array once per publish and loops over it by index. `attach` and `detach` are synchronized with each other, but they never block a publish.
+- `StringObserverAdapter` keeps old text-based observers working. The string is built inside the adapter, so the cost lands only on the observers that ask for it.
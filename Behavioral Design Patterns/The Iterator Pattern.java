@@ -184,6 +184,7 @@ interface Aggregate<T> {
 }
 
 //
+```
 
 
 
@@ -204,3 +205,1644 @@ interface Aggregate<T> {
 
 
   
+
+
+
+---------------------------------------------------------------------------------------------------------------------------
+
+
+
+Splittable Iteration and Parallel Streams
+
+The `BookIterator`, `ListIterator<T>` and `ConcreteIterator<T>` examples only walk forward one element at a time. That is fine for a `while` loop, but a parallel stream cannot split the work. If you wrap such an iterator with `Spliterators.spliteratorUnknownSize`, the stream has to guess the size. It then splits by copying elements into arrays in growing batches, so most cores do little on large collections.
+
+Java's answer is the `Spliterator`, an iterator that can also *split off* part of its remaining range. All three examples are backed by a random-access `List`, so splitting is just halving an index range:
+
+1. **ListSpliterator**: Covers the range `[index, fence)` of a list. `trySplit()` gives away the first half and keeps the second.
+
+2. **Characteristics**: The size of every range is known exactly, before and after any split. So the spliterator reports `SIZED | SUBSIZED`. That lets the stream framework split evenly and write results straight into pre-sized arrays.
+
+3. **Collection and Iterator support**: `BookCollection` gains `spliterator()` and `stream()`. The iterators gain `spliterator()`, which hands over whatever they have not visited yet.
+
+```java
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Splittable traversal over a range of a random-access list
+class ListSpliterator<T> implements Spliterator<T> {
+    private final List<T> list;
+    private int index;
+    private final int fence;
+
+    public ListSpliterator(List<T> list, int origin, int fence) {
+        this.list = list;
+        this.index = origin;
+        this.fence = fence;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (index < fence) {
+            action.accept(list.get(index++));
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        List<T> list = this.list;
+        int fence = this.fence;
+        for (int i = index; i < fence; i++) {
+            action.accept(list.get(i));
+        }
+        index = fence;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        int lo = index;
+        int mid = (lo + fence) >>> 1;
+        if (lo >= mid) {
+            return null;
+        }
+        index = mid;
+        return new ListSpliterator<>(list, lo, mid);
+    }
+
+    @Override
+    public long estimateSize() {
+        return fence - index;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED;
+    }
+}
+
+// Concrete Iterator
+public class BookIterator implements Iterator<Book> {
+    private List<Book> books;
+    private int position;
+
+    public BookIterator(List<Book> books) {
+        this.books = books;
+        this.position = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < books.size();
+    }
+
+    @Override
+    public Book next() {
+        Book book = books.get(position);
+        position++;
+        return book;
+    }
+
+    // Hands the unvisited books to a spliterator; this iterator is then exhausted
+    public Spliterator<Book> spliterator() {
+        Spliterator<Book> rest = new ListSpliterator<>(books, position, books.size());
+        position = books.size();
+        return rest;
+    }
+}
+
+// Concrete Collection
+public class BookCollection implements Collection<Book> {
+    private List<Book> books;
+
+    public BookCollection() {
+        this.books = new ArrayList<>();
+    }
+
+    public void addBook(Book book) {
+        books.add(book);
+    }
+
+    public void removeBook(Book book) {
+        books.remove(book);
+    }
+
+    @Override
+    public Iterator<Book> createIterator() {
+        return new BookIterator(books);
+    }
+
+    public Spliterator<Book> spliterator() {
+        return new ListSpliterator<>(books, 0, books.size());
+    }
+
+    public Stream<Book> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+}
+
+// ConcreteIterator class
+class ListIterator<T> implements Iterator<T> {
+    private List<T> list;
+    private int position = 0;
+
+    public ListIterator(List<T> list) {
+        this.list = list;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < list.size();
+    }
+
+    @Override
+    public T next() {
+        if (hasNext()) {
+            T element = list.get(position);
+            position++;
+            return element;
+        }
+        throw new IndexOutOfBoundsException("No more elements");
+    }
+
+    public Spliterator<T> spliterator() {
+        Spliterator<T> rest = new ListSpliterator<>(list, position, list.size());
+        position = list.size();
+        return rest;
+    }
+}
+
+// Client code
+public class SpliteratorDemo {
+    public static void main(String[] args) {
+        BookCollection bookCollection = new BookCollection();
+        for (int i = 0; i < 1_000; i++) {
+            bookCollection.addBook(new Book("Book " + i, "Author " + (i % 10)));
+        }
+
+        long byAuthor3 = bookCollection.stream()
+                .parallel()
+                .filter(book -> book.getAuthor().equals("Author 3"))
+                .count();
+        System.out.println("Books by Author 3: " + byAuthor3);
+    }
+}
+```
+
+The `ConcreteIterator<T>` in the "More Design Patterns" notes gets the same `spliterator()` method, backed by the same `ListSpliterator`.
+
+A JMH benchmark shows whether the splits are actually even. It runs the same reduction on a 100M-element collection in pools of increasing size. A collection that splits well scales almost linearly until memory bandwidth runs out:
+
+```java
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class BookSpliteratorBenchmark {
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private BookCollection collection;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() {
+        // A few shared Book instances keep the heap at roughly 400 MB of references
+        Book[] samples = new Book[16];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new Book("Book " + i, "Author " + i);
+        }
+        collection = new BookCollection();
+        for (int i = 0; i < 100_000_000; i++) {
+            collection.addBook(samples[i & 15]);
+        }
+        pool = new ForkJoinPool(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public long sumTitleLengths() throws Exception {
+        return pool.submit(() -> collection.stream()
+                .parallel()
+                .mapToLong(book -> book.getTitle().length())
+                .sum()).get();
+    }
+}
+```
+
+In this code:
+
+- `ListSpliterator` is shared by all three iterators. Each split is two integer assignments, so splitting down to leaf tasks costs almost nothing.
+- `estimateSize()` is exact, so `SIZED | SUBSIZED` is reported honestly. Do not report these flags for a source whose size is only a guess, because operations like `toArray()` trust them.
+- The spliterator is not `CONCURRENT`. Like the plain `BookIterator`, it must not be used while `addBook`/`removeBook` change the list.
+
+
+
+---------------------------------------------------------------------------------------------------------------------------
+
+
+
+Columnar Storage with a Flyweight Cursor
+
+`BookCollection` keeps a `List<Book>`, and each `Book` is a separate heap object with two `String` references. A scan over 50M books therefore follows three pointers per element: list slot, `Book`, then `String`. These objects are spread across the heap, so most of the scan is spent waiting on cache misses. It also gives the GC 50M objects to trace.
+
+A *struct-of-arrays* layout flips this around. There is no `Book` object per row. Instead, the collection keeps one column per field:
+
+1. **Dictionary encoding**: Each distinct title and author is stored once in a `StringDictionary`. A row stores only the `int` id of its value. Catalogs repeat authors heavily, so the author column becomes a dense `int[]` and the strings are shared.
+
+2. **Columns**: `titleIds[]` and `authorIds[]` are plain `int` arrays that grow by doubling. A full scan reads them sequentially, which is the access pattern the hardware prefetcher handles best.
+
+3. **BookCursor**: A cursor object is a *flyweight* that points at the current row. `getTitle()`/`getAuthor()` return the dictionary's existing `String`, so moving the cursor allocates nothing. One cursor can be reused for any number of scans.
+
+```java
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+// Each distinct string is stored once and referred to by an int id
+class StringDictionary {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+
+    public int encode(String value) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = values.size();
+            ids.put(value, id);
+            values.add(value);
+        }
+        return id;
+    }
+
+    // Returns -1 if the value was never stored
+    public int lookup(String value) {
+        Integer id = ids.get(value);
+        return id == null ? -1 : id;
+    }
+
+    public String decode(int id) {
+        return values.get(id);
+    }
+}
+
+// Concrete Collection with one column per field
+public class ColumnarBookCollection implements Collection<Book> {
+    private final StringDictionary titles = new StringDictionary();
+    private final StringDictionary authors = new StringDictionary();
+    private int[] titleIds = new int[16];
+    private int[] authorIds = new int[16];
+    private int size;
+
+    public void addBook(String title, String author) {
+        if (size == titleIds.length) {
+            titleIds = Arrays.copyOf(titleIds, size * 2);
+            authorIds = Arrays.copyOf(authorIds, size * 2);
+        }
+        titleIds[size] = titles.encode(title);
+        authorIds[size] = authors.encode(author);
+        size++;
+    }
+
+    public void addBook(Book book) {
+        addBook(book.getTitle(), book.getAuthor());
+    }
+
+    public void removeBook(Book book) {
+        int titleId = titles.lookup(book.getTitle());
+        int authorId = authors.lookup(book.getAuthor());
+        for (int row = 0; row < size; row++) {
+            if (titleIds[row] == titleId && authorIds[row] == authorId) {
+                int tail = size - row - 1;
+                System.arraycopy(titleIds, row + 1, titleIds, row, tail);
+                System.arraycopy(authorIds, row + 1, authorIds, row, tail);
+                size--;
+                return;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public BookCursor cursor() {
+        return new BookCursor(this);
+    }
+
+    // Counts matches by comparing ints; no String is touched during the scan
+    public int countByAuthor(String author) {
+        int authorId = authors.lookup(author);
+        if (authorId < 0) {
+            return 0;
+        }
+        int[] column = authorIds;
+        int count = 0;
+        for (int row = 0; row < size; row++) {
+            if (column[row] == authorId) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Compatibility with the classic iterator; materializes one Book per row
+    @Override
+    public Iterator<Book> createIterator() {
+        BookCursor cursor = cursor();
+        return new Iterator<Book>() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public Book next() {
+                if (!cursor.advance()) {
+                    throw new NoSuchElementException();
+                }
+                return new Book(cursor.getTitle(), cursor.getAuthor());
+            }
+        };
+    }
+
+    // Flyweight cursor over the current row
+    public static final class BookCursor {
+        private final ColumnarBookCollection books;
+        private int row = -1;
+
+        private BookCursor(ColumnarBookCollection books) {
+            this.books = books;
+        }
+
+        public boolean hasNext() {
+            return row + 1 < books.size;
+        }
+
+        public boolean advance() {
+            if (hasNext()) {
+                row++;
+                return true;
+            }
+            return false;
+        }
+
+        public void reset() {
+            row = -1;
+        }
+
+        public String getTitle() {
+            return books.titles.decode(books.titleIds[row]);
+        }
+
+        public String getAuthor() {
+            return books.authors.decode(books.authorIds[row]);
+        }
+
+        public int getAuthorId() {
+            return books.authorIds[row];
+        }
+    }
+}
+
+// Client code
+public class ColumnarDemo {
+    public static void main(String[] args) {
+        ColumnarBookCollection collection = new ColumnarBookCollection();
+        for (int i = 0; i < 50_000_000; i++) {
+            collection.addBook("Book " + (i % 100_000), "Author " + (i % 1_000));
+        }
+
+        // Full scan: the loop itself allocates nothing
+        ColumnarBookCollection.BookCursor cursor = collection.cursor();
+        long titleChars = 0;
+        while (cursor.advance()) {
+            titleChars += cursor.getTitle().length();
+        }
+        System.out.println("Title characters: " + titleChars);
+        System.out.println("Books by Author 7: " + collection.countByAuthor("Author 7"));
+    }
+}
+```
+
+In this code:
+
+- `StringDictionary` maps strings to dense ids. Repeated titles and authors are stored once, no matter how many rows use them.
+- `ColumnarBookCollection` keeps two `int[]` columns. 50M rows take 400 MB of contiguous `int`s. The row-per-object layout needs 50M `Book` headers plus pointers.
+- `BookCursor` is a flyweight. It holds only a row number, and its getters return strings that already live in the dictionaries. Call `reset()` to scan again with the same cursor.
+- `countByAuthor` resolves the author string once. After that it only compares `int`s in a tight loop over one column, which the JIT can unroll and vectorize. This is where scans approach memory bandwidth.
+- `createIterator()` still fulfils the `Collection<Book>` contract for existing callers. It allocates a `Book` per element, so hot paths should use the cursor.
+
+Dictionaries work best when values repeat. If almost every title is unique, the title dictionary is just a `String[]` in a different order. In that case, store the titles as one UTF-8 `byte[]` plus an `int[]` of offsets.
+
+
+
+---------------------------------------------------------------------------------------------------------------------------
+
+
+
+Batch Iteration
+
+Every element returned through the `Iterator<T>` interface costs two interface calls (`hasNext()` and `next()`), two bounds checks and an increment of `position`. If a loop site only ever sees one iterator class, the JIT inlines all of that away. Real call sites are often *megamorphic*: the same loop gets `BookIterator`, `ListIterator` and `ConcreteIterator` at different times. Then every element pays for two virtual calls, and the JIT cannot optimize across them.
+
+The cure is to move more work into each call. The `Iterator` interface gets two bulk operations with default implementations, so existing iterators keep working unchanged:
+
+1. **nextBatch(T[] dst)**: Copies up to `dst.length` elements into the caller's array and returns how many were copied. Zero means the iterator is exhausted. The caller reuses the same array for every batch.
+
+2. **forEachRemaining(Consumer)**: Pushes every remaining element into a callback. The loop runs *inside* the concrete iterator, where its fields are known and the JIT can optimize the whole loop.
+
+The list-backed iterators override both methods. They do one bounds check per batch and then copy with a plain indexed loop.
+
+```java
+import java.util.List;
+import java.util.function.Consumer;
+
+// Iterator interface with bulk operations
+public interface Iterator<T> {
+    boolean hasNext();
+    T next();
+
+    default int nextBatch(T[] dst) {
+        int n = 0;
+        while (n < dst.length && hasNext()) {
+            dst[n++] = next();
+        }
+        return n;
+    }
+
+    default void forEachRemaining(Consumer<? super T> action) {
+        while (hasNext()) {
+            action.accept(next());
+        }
+    }
+}
+
+// Concrete Iterator
+public class BookIterator implements Iterator<Book> {
+    private List<Book> books;
+    private int position;
+
+    public BookIterator(List<Book> books) {
+        this.books = books;
+        this.position = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < books.size();
+    }
+
+    @Override
+    public Book next() {
+        Book book = books.get(position);
+        position++;
+        return book;
+    }
+
+    @Override
+    public int nextBatch(Book[] dst) {
+        int start = position;
+        int n = Math.min(dst.length, books.size() - start);
+        for (int i = 0; i < n; i++) {
+            dst[i] = books.get(start + i);
+        }
+        position = start + n;
+        return n;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Book> action) {
+        List<Book> books = this.books;
+        int size = books.size();
+        for (int i = position; i < size; i++) {
+            action.accept(books.get(i));
+        }
+        position = size;
+    }
+}
+
+// ConcreteIterator class
+class ListIterator<T> implements Iterator<T> {
+    private List<T> list;
+    private int position = 0;
+
+    public ListIterator(List<T> list) {
+        this.list = list;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < list.size();
+    }
+
+    @Override
+    public T next() {
+        if (hasNext()) {
+            T element = list.get(position);
+            position++;
+            return element;
+        }
+        throw new IndexOutOfBoundsException("No more elements");
+    }
+
+    @Override
+    public int nextBatch(T[] dst) {
+        int start = position;
+        int n = Math.min(dst.length, list.size() - start);
+        for (int i = 0; i < n; i++) {
+            dst[i] = list.get(start + i);
+        }
+        position = start + n;
+        return n;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        List<T> list = this.list;
+        int size = list.size();
+        for (int i = position; i < size; i++) {
+            action.accept(list.get(i));
+        }
+        position = size;
+    }
+}
+
+// Client code
+public class BatchIterationDemo {
+    public static void main(String[] args) {
+        BookCollection bookCollection = new BookCollection();
+        for (int i = 0; i < 10; i++) {
+            bookCollection.addBook(new Book("Book " + i, "Author " + i));
+        }
+
+        Iterator<Book> iterator = bookCollection.createIterator();
+        Book[] batch = new Book[4];
+        int n;
+        while ((n = iterator.nextBatch(batch)) > 0) {
+            for (int i = 0; i < n; i++) {
+                System.out.println("Title: " + batch[i].getTitle());
+            }
+        }
+    }
+}
+```
+
+The benchmark makes the loop site megamorphic on purpose. It iterates three different iterator classes through the same method: `ListIterator`, `ConcreteIterator` and an array-backed stub. That is what happens in real code. It then compares element-at-a-time, `nextBatch` and `forEachRemaining`:
+
+```java
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BatchIteratorBenchmark {
+    // Third receiver class, so the call sites see more than two types
+    static final class ArrayIterator<T> implements Iterator<T> {
+        private final T[] items;
+        private int position;
+
+        ArrayIterator(T[] items) {
+            this.items = items;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < items.length;
+        }
+
+        @Override
+        public T next() {
+            return items[position++];
+        }
+
+        @Override
+        public int nextBatch(T[] dst) {
+            int n = Math.min(dst.length, items.length - position);
+            System.arraycopy(items, position, dst, 0, n);
+            position += n;
+            return n;
+        }
+    }
+
+    private List<Integer> values;
+    private Integer[] valueArray;
+    private final Integer[] batch = new Integer[256];
+
+    @Setup
+    public void setup() {
+        values = new ArrayList<>();
+        for (int i = 0; i < 10_000_000; i++) {
+            values.add(i & 1023);
+        }
+        valueArray = values.toArray(new Integer[0]);
+    }
+
+    private Iterator<Integer>[] iterators() {
+        @SuppressWarnings("unchecked")
+        Iterator<Integer>[] iterators = new Iterator[] {
+            new ListIterator<>(values),
+            new ConcreteIterator<>(values),
+            new ArrayIterator<>(valueArray)
+        };
+        return iterators;
+    }
+
+    @Benchmark
+    public long elementAtATime() {
+        long sum = 0;
+        for (Iterator<Integer> it : iterators()) {
+            while (it.hasNext()) {
+                sum += it.next();
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long nextBatch() {
+        long sum = 0;
+        for (Iterator<Integer> it : iterators()) {
+            int n;
+            while ((n = it.nextBatch(batch)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    sum += batch[i];
+                }
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public void forEachRemaining(Blackhole blackhole) {
+        for (Iterator<Integer> it : iterators()) {
+            it.forEachRemaining(blackhole::consume);
+        }
+    }
+}
+```
+
+In this code:
+
+- The default methods in `Iterator` keep every existing implementation source-compatible. An iterator without an override still works; it just gets no faster.
+- `nextBatch` in the list-backed iterators does one interface call and one size check per batch of up to `dst.length` elements. The inner copy loop sees only `ArrayList.get`, which the JIT inlines.
+- `forEachRemaining` hoists `list` and `size` into locals. That keeps the loop tight even when the callback is not inlined.
+- A batch of 128-512 references fits in L1 cache. Bigger batches mostly add copying without saving further calls.
+
+
+
+---------------------------------------------------------------------------------------------------------------------------
+
+
+
+Lazy, Memory-Mapped Book Catalogs
+
+To iterate a multi-gigabyte catalog with `BookCollection`, every record must be parsed into a `Book` and added to `books` before the first `next()` call. Startup time grows with file size, and the whole catalog has to fit in the heap.
+
+The Iterator pattern already hides *where* elements come from, so the collection can work directly on the file instead:
+
+1. **Memory mapping**: `FileChannel.map` makes the file appear as a `MappedByteBuffer`. Opening the collection reads nothing. The operating system pages bytes in on first access and can evict them again under memory pressure. Memory use is then bounded by the OS page cache, not by `-Xmx`.
+
+2. **Windows**: A single `MappedByteBuffer` is limited to 2 GB. The iterator therefore maps a sliding window (64 MB here) and maps a new one when the next record would cross its end. Only the current window is referenced.
+
+3. **Lazy parsing**: The file holds one record per line, `title<TAB>author\n`, in UTF-8. `next()` finds the two delimiters in the window and decodes just that record. Nothing before or after it is parsed.
+
+```java
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+
+// Concrete Collection backed by a memory-mapped catalog file
+public class MappedBookCollection implements Collection<Book>, AutoCloseable {
+    static final long WINDOW_SIZE = 64L << 20;
+    static final int MAX_RECORD_SIZE = 64 << 10;
+
+    private final FileChannel channel;
+    private final long fileSize;
+
+    public MappedBookCollection(Path catalog) throws IOException {
+        this.channel = FileChannel.open(catalog, StandardOpenOption.READ);
+        this.fileSize = channel.size();
+    }
+
+    @Override
+    public Iterator<Book> createIterator() {
+        return new MappedBookIterator(channel, fileSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+// Concrete Iterator that parses one record per next()
+class MappedBookIterator implements Iterator<Book> {
+    private final FileChannel channel;
+    private final long fileSize;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long offset;
+    private byte[] scratch = new byte[256];
+
+    MappedBookIterator(FileChannel channel, long fileSize) {
+        this.channel = channel;
+        this.fileSize = fileSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return offset < fileSize;
+    }
+
+    @Override
+    public Book next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ensureMapped(offset);
+        int start = (int) (offset - windowStart);
+        int end = lineEnd(start);
+        int tab = indexOf((byte) '\t', start, end);
+        if (tab < 0) {
+            throw new IllegalStateException("Malformed record at offset " + offset + ": no tab before end of line");
+        }
+        String title = decode(start, tab);
+        String author = decode(tab + 1, end);
+        offset = windowStart + Math.min(end + 1, window.limit());
+        return new Book(title, author);
+    }
+
+    // Makes sure a whole record starting at position fits in the current window
+    private void ensureMapped(long position) {
+        long windowEnd = windowStart + (window == null ? 0 : window.limit());
+        if (window != null && position >= windowStart
+                && (position + MappedBookCollection.MAX_RECORD_SIZE <= windowEnd || windowEnd == fileSize)) {
+            return;
+        }
+        long size = Math.min(MappedBookCollection.WINDOW_SIZE, fileSize - position);
+        try {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        windowStart = position;
+    }
+
+    // Position of the next newline, or of the end of a final line without one
+    private int lineEnd(int from) {
+        int limit = window.limit();
+        int searchEnd = Math.min(limit, from + MappedBookCollection.MAX_RECORD_SIZE);
+        int newline = indexOf((byte) '\n', from, searchEnd);
+        if (newline >= 0) {
+            return newline;
+        }
+        if (searchEnd == limit && windowStart + limit == fileSize) {
+            return limit; // last record without a trailing newline
+        }
+        throw new IllegalStateException("Record at offset " + offset
+                + " is longer than " + MappedBookCollection.MAX_RECORD_SIZE + " bytes");
+    }
+
+    // First position of delimiter in [from, to), or -1
+    private int indexOf(byte delimiter, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (window.get(i) == delimiter) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String decode(int from, int to) {
+        int length = to - from;
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        window.get(from, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
+
+// Client code
+public class MappedCatalogDemo {
+    public static void main(String[] args) throws IOException {
+        try (MappedBookCollection catalog = new MappedBookCollection(Path.of(args[0]))) {
+            Iterator<Book> iterator = catalog.createIterator();
+            // The first book is available as soon as its page has been read
+            if (iterator.hasNext()) {
+                Book first = iterator.next();
+                System.out.println("First: " + first.getTitle() + " by " + first.getAuthor());
+            }
+        }
+    }
+}
+```
+
+In this code:
+
+- The `MappedBookCollection` constructor only opens the file and reads its size, so the time to the first element is constant whatever the catalog size. The first `next()` maps one window and touches one page.
+- Each `MappedBookIterator` has its own window and offset. Several iterators can scan the same catalog independently, and the OS shares the physical pages between them.
+- `ensureMapped` remaps only when fewer than `MAX_RECORD_SIZE` bytes remain in the window. A record is therefore never split across two mappings. `lineEnd` looks for the newline only within `MAX_RECORD_SIZE` bytes of the record start, so a longer record is reported with an `IllegalStateException` rather than silently cut, wherever the current window happens to begin.
+- `next()` finds the end of the line first and then looks for the tab only within that line. A line without a tab is reported as malformed with its offset. Otherwise the search would run into the next record and parse garbage.
+- `decode` copies the record bytes into a reused scratch array. The only allocations per element are the two `String`s and the `Book` itself. If you combine this with the flyweight `BookCursor` above, even those go away for scans that only compare bytes.
+- Old windows are released when the GC collects their `MappedByteBuffer`. On Java 22+, `FileChannel.map(mode, offset, size, arena)` returns a `MemorySegment` with no 2 GB limit that is unmapped as soon as the `Arena` closes. It is the better choice for very large files.
+
+
+
+---------------------------------------------------------------------------------------------------------------------------
+
+
+
+Concurrent BookCollection with Snapshot Iterators
+
+`BookIterator` reads `books.get(position)` from the same `ArrayList` that `addBook` and `removeBook` change. If another thread removes a book mid-scan, every later element moves down one slot and the iterator skips one. An insert makes it see one twice. If the list shrinks under it, the iterator fails with `IndexOutOfBoundsException`. `Collections.synchronizedList` does not help, because the iterator makes many separate calls. `CopyOnWriteArrayList` does fix it, but it copies the entire list on every write.
+
+A better fit is to give iterators an immutable *version* of the collection and to make writes cheap by sharing almost everything between versions:
+
+1. **Chunks**: Books are stored in chunks of up to 1,024 references. A version is an array of sealed chunks plus one *tail* chunk that is still being filled.
+
+2. **Append in place**: `addBook` writes into the next free tail slot and publishes a new version whose `tailCount` is one larger. Older versions stop at their own `tailCount`, so they never see the new slot. An append therefore copies nothing, except once per 1,024 books, when the tail is sealed.
+
+3. **Copy-on-write removal**: `removeBook` copies only the chunk that held the book, plus the small array of chunk references. Every other chunk is shared with older versions.
+
+4. **Publication**: Writers take a lock among themselves and publish a version through a single `volatile` write. Readers never lock. `createIterator()` reads the current version once and iterates it, however long the scan takes.
+
+```java
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+// Concrete Collection with lock-free snapshot reads
+public class ConcurrentBookCollection implements Collection<Book> {
+    static final int CHUNK_SIZE = 1024;
+
+    // Immutable view; tail slots at or beyond tailCount are invisible to it
+    static final class Version {
+        final Book[][] chunks;
+        final Book[] tail;
+        final int tailCount;
+        final int size;
+
+        Version(Book[][] chunks, Book[] tail, int tailCount, int size) {
+            this.chunks = chunks;
+            this.tail = tail;
+            this.tailCount = tailCount;
+            this.size = size;
+        }
+    }
+
+    private final Object writeLock = new Object();
+    private volatile Version current = new Version(new Book[0][], new Book[CHUNK_SIZE], 0, 0);
+
+    public void addBook(Book book) {
+        synchronized (writeLock) {
+            Version v = current;
+            if (v.tailCount < CHUNK_SIZE) {
+                v.tail[v.tailCount] = book;
+                current = new Version(v.chunks, v.tail, v.tailCount + 1, v.size + 1);
+            } else {
+                Book[][] chunks = Arrays.copyOf(v.chunks, v.chunks.length + 1);
+                chunks[v.chunks.length] = v.tail;
+                Book[] tail = new Book[CHUNK_SIZE];
+                tail[0] = book;
+                current = new Version(chunks, tail, 1, v.size + 1);
+            }
+        }
+    }
+
+    public void removeBook(Book book) {
+        synchronized (writeLock) {
+            Version v = current;
+            for (int c = 0; c < v.chunks.length; c++) {
+                int i = indexOf(v.chunks[c], v.chunks[c].length, book);
+                if (i >= 0) {
+                    Book[] chunk = without(v.chunks[c], v.chunks[c].length, i);
+                    Book[][] chunks;
+                    if (chunk.length == 0) {
+                        chunks = new Book[v.chunks.length - 1][];
+                        System.arraycopy(v.chunks, 0, chunks, 0, c);
+                        System.arraycopy(v.chunks, c + 1, chunks, c, v.chunks.length - c - 1);
+                    } else {
+                        chunks = v.chunks.clone();
+                        chunks[c] = chunk;
+                    }
+                    current = new Version(chunks, v.tail, v.tailCount, v.size - 1);
+                    return;
+                }
+            }
+            int i = indexOf(v.tail, v.tailCount, book);
+            if (i >= 0) {
+                // Older versions may still read this tail, so it is copied rather than shifted
+                Book[] tail = Arrays.copyOf(without(v.tail, v.tailCount, i), CHUNK_SIZE);
+                current = new Version(v.chunks, tail, v.tailCount - 1, v.size - 1);
+            }
+        }
+    }
+
+    public int size() {
+        return current.size;
+    }
+
+    @Override
+    public Iterator<Book> createIterator() {
+        return new SnapshotBookIterator(current);
+    }
+
+    private static int indexOf(Book[] books, int length, Book book) {
+        for (int i = 0; i < length; i++) {
+            if (Objects.equals(books[i], book)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Book[] without(Book[] books, int length, int index) {
+        Book[] copy = new Book[length - 1];
+        System.arraycopy(books, 0, copy, 0, index);
+        System.arraycopy(books, index + 1, copy, index, length - index - 1);
+        return copy;
+    }
+
+    // Concrete Iterator over one immutable version
+    static final class SnapshotBookIterator implements Iterator<Book> {
+        final Version version;
+        private int chunk;
+        private int index;
+        private int remaining;
+
+        SnapshotBookIterator(Version version) {
+            this.version = version;
+            this.remaining = version.size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public Book next() {
+            if (remaining == 0) {
+                throw new NoSuchElementException();
+            }
+            while (chunk < version.chunks.length && index == version.chunks[chunk].length) {
+                chunk++;
+                index = 0;
+            }
+            Book[] books = chunk < version.chunks.length ? version.chunks[chunk] : version.tail;
+            remaining--;
+            return books[index++];
+        }
+    }
+}
+```
+
+The stress test below checks that every snapshot is consistent. Appender threads each add their own numbered books in order. A churn thread keeps adding and removing one book. Reader threads then check three things in every snapshot:
+
+- the number of elements iterated equals the `size` the snapshot was taken with;
+- each appender's books appear as an unbroken run `0..k`, with no gaps or duplicates;
+- at most one churn book is visible.
+
+A check fails if a reader ever sees a state that no single point in time produced. The harness prints throughput for the mixed load when it finishes:
+
+```java
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConcurrentBookCollectionStressTest {
+    static final int APPENDERS = 4;
+    static final int BOOKS_PER_APPENDER = 200_000;
+    static final int READERS = 4;
+
+    public static void main(String[] args) throws InterruptedException {
+        ConcurrentBookCollection collection = new ConcurrentBookCollection();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong writes = new AtomicLong();
+        AtomicLong snapshotsChecked = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        CountDownLatch appendersDone = new CountDownLatch(APPENDERS);
+        long start = System.nanoTime();
+
+        for (int w = 0; w < APPENDERS; w++) {
+            String author = "appender-" + w;
+            new Thread(() -> {
+                for (int seq = 0; seq < BOOKS_PER_APPENDER; seq++) {
+                    collection.addBook(new Book(Integer.toString(seq), author));
+                    writes.incrementAndGet();
+                }
+                appendersDone.countDown();
+            }).start();
+        }
+
+        Thread churn = new Thread(() -> {
+            while (running.get()) {
+                Book book = new Book("churn", "churn");
+                collection.addBook(book);
+                collection.removeBook(book);
+                writes.addAndGet(2);
+            }
+        });
+        churn.start();
+
+        Thread[] readers = new Thread[READERS];
+        for (int r = 0; r < READERS; r++) {
+            readers[r] = new Thread(() -> {
+                while (running.get()) {
+                    ConcurrentBookCollection.SnapshotBookIterator it =
+                            (ConcurrentBookCollection.SnapshotBookIterator) collection.createIterator();
+                    int[] nextSeq = new int[APPENDERS];
+                    int churnSeen = 0;
+                    int count = 0;
+                    while (it.hasNext()) {
+                        Book book = it.next();
+                        count++;
+                        if (book.getAuthor().equals("churn")) {
+                            churnSeen++;
+                            continue;
+                        }
+                        int w = book.getAuthor().charAt("appender-".length()) - '0';
+                        if (Integer.parseInt(book.getTitle()) != nextSeq[w]++) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    if (churnSeen > 1 || count != it.version.size) {
+                        failures.incrementAndGet();
+                    }
+                    snapshotsChecked.incrementAndGet();
+                }
+            });
+            readers[r].start();
+        }
+
+        appendersDone.await();
+        running.set(false);
+        churn.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("writes/s=%.0f snapshots/s=%.0f failures=%d final size=%d%n",
+                writes.get() / seconds, snapshotsChecked.get() / seconds,
+                failures.get(), collection.size());
+    }
+}
+```
+
+In this code:
+
+- `Version` is immutable from the point of view of any reader. The only slots a writer ever fills are tail slots past every published `tailCount`. The `volatile` write of `current` publishes those slots together with the new count.
+- An append is O(1) in the common case. The chunk-reference array is copied once per 1,024 appends. A removal is O(n) to find the book, like `ArrayList.remove`, but it copies only one chunk.
+- `SnapshotBookIterator` walks its own version only. Writers can go on for the whole scan without blocking it, and the scan never shows a half-applied write.
+- Writers still serialize with one another on `writeLock`. Each write does only a few pointer copies, so the lock is held very briefly. If many writers each append from their own thread, give each writer its own collection and merge the snapshots instead of sharing one lock.
+- Run the stress test on a machine with at least `APPENDERS + READERS + 1` cores. The reported `failures` must be 0, and the throughput line gives the mixed read/write numbers for that machine.
+
+
+
+---------------------------------------------------------------------------------------------------------------------------
+
+
+
+Primitive-Specialized Iterators
+
+`Iterator<T>` and `Aggregate<T>` work only with references. So a numeric collection is a `List<Integer>` or `List<Double>`, and every `next()` hands back a box. Values outside the small `Integer` cache mean one object per element when the list is built. Iterating then means a pointer chase plus an unboxing per element. Analytics loops over 100M values end up bound by memory latency and the GC rather than by arithmetic.
+
+The JDK solves this with `PrimitiveIterator.OfInt` and friends. We apply the same approach to the project's own interfaces:
+
+1. **IntIterator / LongIterator / DoubleIterator**: Each extends `Iterator` with the matching wrapper type, so it can still be used wherever an `Iterator` is expected. It adds `nextInt()`/`nextLong()`/`nextDouble()`, which return the raw value. The inherited `next()` is a default method that boxes, and it exists only for compatibility.
+
+2. **IntAggregate / LongAggregate / DoubleAggregate**: Narrow `createIterator()` to the primitive iterator type (a covariant return).
+
+3. **Array-backed aggregates**: Values live in a growable primitive array, so 100M ints are 400 MB of contiguous memory. The `Integer` version needs an array of references plus 100M separate objects.
+
+```java
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+// Primitive iterator contracts
+interface IntIterator extends Iterator<Integer> {
+    int nextInt();
+
+    @Override
+    default Integer next() {
+        return nextInt();
+    }
+}
+
+interface LongIterator extends Iterator<Long> {
+    long nextLong();
+
+    @Override
+    default Long next() {
+        return nextLong();
+    }
+}
+
+interface DoubleIterator extends Iterator<Double> {
+    double nextDouble();
+
+    @Override
+    default Double next() {
+        return nextDouble();
+    }
+}
+
+// Primitive aggregate contracts
+interface IntAggregate extends Aggregate<Integer> {
+    @Override
+    IntIterator createIterator();
+}
+
+interface LongAggregate extends Aggregate<Long> {
+    @Override
+    LongIterator createIterator();
+}
+
+interface DoubleAggregate extends Aggregate<Double> {
+    @Override
+    DoubleIterator createIterator();
+}
+
+// ConcreteAggregate backed by an int[]
+class IntArrayAggregate implements IntAggregate {
+    private int[] values = new int[16];
+    private int size;
+
+    public void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public IntIterator createIterator() {
+        return new IntArrayIterator(values, size);
+    }
+}
+
+// ConcreteIterator over an int[]
+class IntArrayIterator implements IntIterator {
+    private final int[] values;
+    private final int size;
+    private int position;
+
+    IntArrayIterator(int[] values, int size) {
+        this.values = values;
+        this.size = size;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < size;
+    }
+
+    @Override
+    public int nextInt() {
+        if (position >= size) {
+            throw new NoSuchElementException();
+        }
+        return values[position++];
+    }
+
+    // Primitive counterpart of nextBatch(T[])
+    public int nextBatch(int[] dst) {
+        int n = Math.min(dst.length, size - position);
+        System.arraycopy(values, position, dst, 0, n);
+        position += n;
+        return n;
+    }
+}
+
+// ConcreteAggregate backed by a long[]
+class LongArrayAggregate implements LongAggregate {
+    private long[] values = new long[16];
+    private int size;
+
+    public void add(long value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    @Override
+    public LongIterator createIterator() {
+        long[] values = this.values;
+        int size = this.size;
+        return new LongIterator() {
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                return position < size;
+            }
+
+            @Override
+            public long nextLong() {
+                if (position >= size) {
+                    throw new NoSuchElementException();
+                }
+                return values[position++];
+            }
+        };
+    }
+}
+
+// ConcreteAggregate backed by a double[]
+class DoubleArrayAggregate implements DoubleAggregate {
+    private double[] values = new double[16];
+    private int size;
+
+    public void add(double value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    @Override
+    public DoubleIterator createIterator() {
+        double[] values = this.values;
+        int size = this.size;
+        return new DoubleIterator() {
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                return position < size;
+            }
+
+            @Override
+            public double nextDouble() {
+                if (position >= size) {
+                    throw new NoSuchElementException();
+                }
+                return values[position++];
+            }
+        };
+    }
+}
+```
+
+The JMH harness below builds the same 100M values twice: once in a boxed `List<Integer>` behind `ListIterator`, and once in an `IntArrayAggregate`. It sums them through each iterator:
+
+```java
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// ConcreteAggregate for the boxed baseline
+class ListAggregate<T> implements Aggregate<T> {
+    private final List<T> list;
+
+    ListAggregate(List<T> list) {
+        this.list = list;
+    }
+
+    @Override
+    public Iterator<T> createIterator() {
+        return new ListIterator<>(list);
+    }
+}
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgs = {"-Xmx6g"})
+public class PrimitiveIteratorBenchmark {
+    private static final int SIZE = 100_000_000;
+
+    private Aggregate<Integer> boxed;
+    private IntArrayAggregate primitive;
+
+    @Setup
+    public void setup() {
+        List<Integer> list = new ArrayList<>(SIZE);
+        primitive = new IntArrayAggregate();
+        for (int i = 0; i < SIZE; i++) {
+            int value = i * 31;
+            list.add(value);
+            primitive.add(value);
+        }
+        boxed = new ListAggregate<>(list);
+    }
+
+    @Benchmark
+    public long boxedTraversal() {
+        long sum = 0;
+        Iterator<Integer> it = boxed.createIterator();
+        while (it.hasNext()) {
+            sum += it.next();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long primitiveTraversal() {
+        long sum = 0;
+        IntIterator it = primitive.createIterator();
+        while (it.hasNext()) {
+            sum += it.nextInt();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long primitiveBatchTraversal() {
+        long sum = 0;
+        IntArrayIterator it = (IntArrayIterator) primitive.createIterator();
+        int[] batch = new int[512];
+        int n;
+        while ((n = it.nextBatch(batch)) > 0) {
+            for (int i = 0; i < n; i++) {
+                sum += batch[i];
+            }
+        }
+        return sum;
+    }
+}
+```
+
+In this code:
+
+- `IntIterator` *is an* `Iterator<Integer>`, so existing generic code still accepts it. Code that knows it holds an `IntIterator` calls `nextInt()` and never creates a box.
+- `IntAggregate.createIterator()` returns `IntIterator` through a covariant return type. Callers holding the specific aggregate type never need a cast.
+- The array iterators keep the array and size in `final` fields. The JIT can then hoist the bounds check out of the loop.
+- `nextBatch(int[])` uses `System.arraycopy`. The summing loop then runs over a small primitive array the JIT can vectorize.
+- The boxed values in the benchmark are mostly outside the `Integer` cache. This reflects real data, and it is the boxed layout's memory use (about 2 GB against 400 MB) that needs the larger heap.
+
+
+
+---------------------------------------------------------------------------------------------------------------------------
+
+
+
+Secondary Indexes and Filtered Iterators
+
+`BookIterator` can only walk the whole collection, so "all books by Author 7" means checking every book. Databases solve this with *secondary indexes*: extra structures, kept in sync with the data, that map a field value to the rows holding it. The same idea fits behind the Iterator pattern. The client still gets an `Iterator<Book>`, but the collection creates it from an index and never visits a non-matching book.
+
+1. **BookField**: Names an indexable field (`TITLE`, `AUTHOR`) and knows how to read it from a `Book`.
+
+2. **Hash index**: A `HashMap<String, List<Book>>` per field. An exact-match lookup is O(1) plus the k results.
+
+3. **Sorted index**: A `TreeMap<String, List<Book>>` per field. Prefix and range queries use `subMap`, so they cost O(log n + k).
+
+4. **Maintenance**: `addBook` and `removeBook` update every index that has been created. Indexes are optional, so a collection pays only for the lookups it actually needs. A query on a field without an index falls back to a filtered full scan.
+
+```java
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+// Indexable fields of a Book
+enum BookField {
+    TITLE(Book::getTitle),
+    AUTHOR(Book::getAuthor);
+
+    private final Function<Book, String> accessor;
+
+    BookField(Function<Book, String> accessor) {
+        this.accessor = accessor;
+    }
+
+    String valueOf(Book book) {
+        return accessor.apply(book);
+    }
+}
+
+enum IndexType {
+    HASH,
+    SORTED
+}
+
+// Concrete Collection with optional secondary indexes
+public class IndexedBookCollection implements Collection<Book> {
+    private final List<Book> books = new ArrayList<>();
+    private final Map<BookField, Map<String, List<Book>>> hashIndexes = new EnumMap<>(BookField.class);
+    private final Map<BookField, NavigableMap<String, List<Book>>> sortedIndexes = new EnumMap<>(BookField.class);
+
+    public void createIndex(BookField field, IndexType type) {
+        Map<String, List<Book>> index = type == IndexType.HASH ? new HashMap<>() : new TreeMap<>();
+        for (Book book : books) {
+            index.computeIfAbsent(field.valueOf(book), key -> new ArrayList<>()).add(book);
+        }
+        if (type == IndexType.HASH) {
+            hashIndexes.put(field, index);
+        } else {
+            sortedIndexes.put(field, (NavigableMap<String, List<Book>>) index);
+        }
+    }
+
+    public void addBook(Book book) {
+        books.add(book);
+        hashIndexes.forEach((field, index) -> addTo(index, field.valueOf(book), book));
+        sortedIndexes.forEach((field, index) -> addTo(index, field.valueOf(book), book));
+    }
+
+    public void removeBook(Book book) {
+        if (books.remove(book)) {
+            hashIndexes.forEach((field, index) -> removeFrom(index, field.valueOf(book), book));
+            sortedIndexes.forEach((field, index) -> removeFrom(index, field.valueOf(book), book));
+        }
+    }
+
+    @Override
+    public Iterator<Book> createIterator() {
+        return new BookIterator(books);
+    }
+
+    // Exact match: hash index, then sorted index, then a filtered scan
+    public Iterator<Book> findEqual(BookField field, String value) {
+        Map<String, List<Book>> index = hashIndexes.get(field);
+        if (index == null) {
+            index = sortedIndexes.get(field);
+        }
+        if (index != null) {
+            return new BookIterator(index.getOrDefault(value, Collections.emptyList()));
+        }
+        return new FilteringIterator(books, book -> value.equals(field.valueOf(book)));
+    }
+
+    public Iterator<Book> findPrefix(BookField field, String prefix) {
+        NavigableMap<String, List<Book>> index = sortedIndexes.get(field);
+        if (index == null) {
+            return new FilteringIterator(books, book -> field.valueOf(book).startsWith(prefix));
+        }
+        String upper = prefixSuccessor(prefix);
+        return new FlatteningIterator(upper == null
+                ? index.tailMap(prefix, true)
+                : index.subMap(prefix, true, upper, false));
+    }
+
+    // Smallest string greater than every string that starts with prefix, or null if none exists
+    static String prefixSuccessor(String prefix) {
+        int last = prefix.length() - 1;
+        while (last >= 0 && prefix.charAt(last) == Character.MAX_VALUE) {
+            last--;
+        }
+        if (last < 0) {
+            return null; // empty or all Character.MAX_VALUE: every key from prefix on matches
+        }
+        return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+    }
+
+    // Range query, from inclusive and to exclusive
+    public Iterator<Book> findRange(BookField field, String from, String to) {
+        NavigableMap<String, List<Book>> index = sortedIndexes.get(field);
+        if (index == null) {
+            return new FilteringIterator(books, book -> {
+                String value = field.valueOf(book);
+                return value.compareTo(from) >= 0 && value.compareTo(to) < 0;
+            });
+        }
+        return new FlatteningIterator(index.subMap(from, true, to, false));
+    }
+
+    private static void addTo(Map<String, List<Book>> index, String key, Book book) {
+        index.computeIfAbsent(key, k -> new ArrayList<>()).add(book);
+    }
+
+    private static void removeFrom(Map<String, List<Book>> index, String key, Book book) {
+        List<Book> bucket = index.get(key);
+        if (bucket != null && bucket.remove(book) && bucket.isEmpty()) {
+            index.remove(key);
+        }
+    }
+}
+
+// Concrete Iterator over the buckets of an index range
+class FlatteningIterator implements Iterator<Book> {
+    private final java.util.Iterator<List<Book>> buckets;
+    private List<Book> bucket = Collections.emptyList();
+    private int position;
+
+    FlatteningIterator(NavigableMap<String, List<Book>> range) {
+        this.buckets = range.values().iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (position == bucket.size()) {
+            if (!buckets.hasNext()) {
+                return false;
+            }
+            bucket = buckets.next();
+            position = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public Book next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return bucket.get(position++);
+    }
+}
+
+// Concrete Iterator that skips books not matching a predicate
+class FilteringIterator implements Iterator<Book> {
+    private final List<Book> books;
+    private final Predicate<Book> filter;
+    private int position;
+
+    FilteringIterator(List<Book> books, Predicate<Book> filter) {
+        this.books = books;
+        this.filter = filter;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (position < books.size()) {
+            if (filter.test(books.get(position))) {
+                return true;
+            }
+            position++;
+        }
+        return false;
+    }
+
+    @Override
+    public Book next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return books.get(position++);
+    }
+}
+
+// Client code
+public class IndexedCollectionDemo {
+    public static void main(String[] args) {
+        IndexedBookCollection collection = new IndexedBookCollection();
+        collection.createIndex(BookField.AUTHOR, IndexType.HASH);
+        collection.createIndex(BookField.TITLE, IndexType.SORTED);
+
+        for (int i = 0; i < 100_000; i++) {
+            collection.addBook(new Book("Book " + i, "Author " + (i % 100)));
+        }
+
+        Iterator<Book> byAuthor = collection.findEqual(BookField.AUTHOR, "Author 7");
+        int count = 0;
+        while (byAuthor.hasNext()) {
+            byAuthor.next();
+            count++;
+        }
+        System.out.println("Books by Author 7: " + count);
+
+        Iterator<Book> byPrefix = collection.findPrefix(BookField.TITLE, "Book 9999");
+        while (byPrefix.hasNext()) {
+            System.out.println(byPrefix.next().getTitle());
+        }
+    }
+}
+```
+
+In this code:
+
+- `IndexedBookCollection` keeps the main `books` list, so `createIterator()` behaves exactly as before. The indexes only hold extra references to the same `Book` objects.
+- `findEqual`, `findPrefix` and `findRange` all return the project's `Iterator<Book>`. The client cannot tell an index lookup from a scan, which is the point of the Iterator pattern.
+- `findPrefix` turns a prefix into the half-open range `[prefix, successor)`. The successor is the prefix with trailing `Character.MAX_VALUE` chars dropped and the last remaining char incremented, for example `"Bo"` → `"Bp"`. In `String.compareTo` order, that range holds exactly the keys starting with the prefix, including those where `\uFFFF` follows it. A `TreeMap` can therefore answer the query in O(log n + k). A prefix made only of `\uFFFF` chars has no successor and uses `tailMap` instead.
+- `removeBook` drops empty buckets. Otherwise keys of deleted books would pile up in the index and slow down range queries.
+- Every index adds work to `addBook` and `removeBook`: one hash update or one O(log n) tree update per index. Only create indexes for fields you actually query.
+- Like `BookIterator`, the index iterators are not safe against changes made while they run. The snapshot techniques from the concurrent collection above apply to the buckets too.
@@ -172,3 +172,2027 @@ This pattern allows you to save snapshots of the application's state and restore
 
 
   
+
+
+
+--------------------------------------------------------------------------------------------------------------------------------------------------------------------
+
+
+
+Delta-Encoded Mementos
+
+In the text editor example, `TextEditor.write` calls `textWindow.save()` after every change, and `save()` copies the whole of `currentText` into a new `String`. Typing one character into a 1 MB document stores another 1 MB. Over a session of n keystrokes, memory grows as O(n²) even though the user typed only n characters.
+
+A memento does not have to be a full copy. It only needs enough information to move the originator back to where it was. For a text buffer, that is the edit itself:
+
+1. **EditMemento**: Records one change as `(offset, inserted, removed)`. Undo deletes the inserted text at `offset` and puts the removed text back. The memento is as big as the edit, not the document.
+
+2. **Checkpoints**: Replaying a long chain of deltas to reach a distant revision is slow. So the caretaker also keeps occasional full snapshots. It takes one when the delta bytes written since the last checkpoint exceed the current document length. This keeps total checkpoint memory proportional to the edit volume, and replaying to any revision never processes more than about one document's worth of edits.
+
+3. **Undo**: The caretaker pops the last `EditMemento` and reverts it in O(edit size). Jumping many revisions back restores the nearest earlier checkpoint and replays forward.
+
+```java
+import java.util.ArrayList;
+import java.util.List;
+
+// Memento holding a single edit
+public class EditMemento {
+    private final int offset;
+    private final String inserted;
+    private final String removed;
+
+    public EditMemento(int offset, String inserted, String removed) {
+        this.offset = offset;
+        this.inserted = inserted;
+        this.removed = removed;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public String getInserted() {
+        return inserted;
+    }
+
+    public String getRemoved() {
+        return removed;
+    }
+
+    public int size() {
+        return inserted.length() + removed.length();
+    }
+}
+
+// Full snapshot taken at a given revision
+public class Checkpoint {
+    private final int revision;
+    private final Memento snapshot;
+
+    public Checkpoint(int revision, Memento snapshot) {
+        this.revision = revision;
+        this.snapshot = snapshot;
+    }
+
+    public int getRevision() {
+        return revision;
+    }
+
+    public Memento getSnapshot() {
+        return snapshot;
+    }
+}
+
+// Originator
+public class TextWindow {
+    private StringBuilder currentText;
+
+    public TextWindow() {
+        this.currentText = new StringBuilder();
+    }
+
+    public EditMemento addText(String text) {
+        return insert(currentText.length(), text);
+    }
+
+    public EditMemento insert(int offset, String text) {
+        currentText.insert(offset, text);
+        return new EditMemento(offset, text, "");
+    }
+
+    public EditMemento delete(int offset, int length) {
+        String removed = currentText.substring(offset, offset + length);
+        currentText.delete(offset, offset + length);
+        return new EditMemento(offset, "", removed);
+    }
+
+    public void revert(EditMemento edit) {
+        int offset = edit.getOffset();
+        currentText.replace(offset, offset + edit.getInserted().length(), edit.getRemoved());
+    }
+
+    public void reapply(EditMemento edit) {
+        int offset = edit.getOffset();
+        currentText.replace(offset, offset + edit.getRemoved().length(), edit.getInserted());
+    }
+
+    public Memento save() {
+        return new Memento(currentText.toString());
+    }
+
+    public void restore(Memento memento) {
+        this.currentText = new StringBuilder(memento.getSavedText());
+    }
+
+    public int length() {
+        return currentText.length();
+    }
+
+    public String getText() {
+        return currentText.toString();
+    }
+}
+
+// Caretaker
+public class TextEditor {
+    private final TextWindow textWindow;
+    private final List<EditMemento> edits = new ArrayList<>();
+    private final List<Checkpoint> checkpoints = new ArrayList<>();
+    private long deltaCharsSinceCheckpoint;
+
+    public TextEditor(TextWindow textWindow) {
+        this.textWindow = textWindow;
+        checkpoints.add(new Checkpoint(0, textWindow.save()));
+    }
+
+    public void write(String text) {
+        record(textWindow.addText(text));
+    }
+
+    public void insert(int offset, String text) {
+        record(textWindow.insert(offset, text));
+    }
+
+    public void delete(int offset, int length) {
+        record(textWindow.delete(offset, length));
+    }
+
+    public void undo() {
+        if (!edits.isEmpty()) {
+            EditMemento edit = edits.remove(edits.size() - 1);
+            textWindow.revert(edit);
+            if (dropCheckpointsAfter(edits.size())) {
+                recountSinceCheckpoint(); // the undone edit had triggered a checkpoint
+            } else {
+                deltaCharsSinceCheckpoint -= edit.size();
+            }
+        }
+    }
+
+    // Moves back to an earlier revision via the nearest checkpoint
+    public void undoTo(int revision) {
+        if (revision < 0 || revision >= edits.size()) {
+            return;
+        }
+        dropCheckpointsAfter(revision);
+        Checkpoint checkpoint = checkpoints.get(checkpoints.size() - 1);
+        textWindow.restore(checkpoint.getSnapshot());
+        for (int i = checkpoint.getRevision(); i < revision; i++) {
+            textWindow.reapply(edits.get(i));
+        }
+        edits.subList(revision, edits.size()).clear();
+        recountSinceCheckpoint();
+    }
+
+    public int revision() {
+        return edits.size();
+    }
+
+    private void record(EditMemento edit) {
+        edits.add(edit);
+        deltaCharsSinceCheckpoint += edit.size();
+        if (deltaCharsSinceCheckpoint >= textWindow.length()) {
+            checkpoints.add(new Checkpoint(edits.size(), textWindow.save()));
+            deltaCharsSinceCheckpoint = 0;
+        }
+    }
+
+    // Returns true if any checkpoint was dropped
+    private boolean dropCheckpointsAfter(int revision) {
+        boolean dropped = false;
+        while (checkpoints.get(checkpoints.size() - 1).getRevision() > revision) {
+            checkpoints.remove(checkpoints.size() - 1);
+            dropped = true;
+        }
+        return dropped;
+    }
+
+    private void recountSinceCheckpoint() {
+        deltaCharsSinceCheckpoint = 0;
+        for (int i = checkpoints.get(checkpoints.size() - 1).getRevision(); i < edits.size(); i++) {
+            deltaCharsSinceCheckpoint += edits.get(i).size();
+        }
+    }
+}
+
+// Client code
+public class DeltaMementoDemo {
+    public static void main(String[] args) {
+        TextWindow window = new TextWindow();
+        TextEditor editor = new TextEditor(window);
+
+        editor.write("Hello");
+        editor.write(" World");
+        editor.insert(5, ",");
+        editor.delete(0, 1);
+        System.out.println(window.getText()); // "ello, World"
+
+        editor.undo();
+        System.out.println(window.getText()); // "Hello, World"
+
+        editor.undoTo(1);
+        System.out.println(window.getText()); // "Hello"
+    }
+}
+```
+
+In this code:
+
+- `EditMemento` is still a memento. It is immutable, it is created by the originator, and only the originator knows how to apply it (`revert`/`reapply`). The caretaker just stores it.
+- `TextWindow.delete` keeps the removed text in the memento, so undoing a deletion needs no snapshot.
+- `TextEditor.record` takes a checkpoint once the edits since the last checkpoint add up to at least the current document length. Each checkpoint then costs no more than the edits that triggered it, so total memory grows linearly with edit volume.
+- `undo()` reverts only the last edit, so its cost depends on the edit size, not the document size. It also takes that edit back out of `deltaCharsSinceCheckpoint`, so the next checkpoint is scheduled from the edits that actually remain. If the undone edit had triggered a checkpoint, that checkpoint is dropped and the count is rebuilt from the previous one. `undoTo` uses a checkpoint, so the replay is bounded by about one document's worth of edits.
+- The original `Memento` class is reused for the checkpoints. Nothing about full snapshots has changed; they are just much rarer.
+
+
+
+--------------------------------------------------------------------------------------------------------------------------------------------------------------------
+
+
+
+A Persistent Piece Table for TextWindow
+
+Delta mementos keep the undo history small. The `TextWindow` itself is still a `StringBuilder`, though. Inserting in the middle of a 100 MB document shifts up to 100 MB of characters, and `save()`/`restore()` each copy the whole document. Both costs grow with the document, not with the edit.
+
+Editors such as VS Code and the original Word use a *piece table* instead. The document is a sequence of pieces, and each piece points at a range of some immutable source string: the original file, or text the user typed. An edit never moves text. It only splits pieces and adds new ones.
+
+Here the pieces are stored in a *persistent* balanced tree:
+
+1. **Piece**: A node refers to `(source, start, length)`. Splitting a piece creates two nodes over the same source. No characters are copied.
+
+2. **Implicit treap**: Nodes are ordered by document position and balanced by random priorities. Each node caches the total length of its subtree, so finding an offset takes O(log n). `insert` and `delete` are built from `split` and `merge`, each O(log n) expected.
+
+3. **Structural sharing**: Nodes are immutable. An edit copies only the O(log n) nodes on the path it changes and shares the rest with the previous version. A snapshot is just the root reference, so `save()` and `restore()` are O(1).
+
+```java
+import java.util.concurrent.ThreadLocalRandom;
+
+// Immutable treap of text pieces
+final class PieceTree {
+    static final class Node {
+        final String source;
+        final int start;
+        final int length;
+        final int priority;
+        final Node left;
+        final Node right;
+        final long totalLength;
+
+        Node(String source, int start, int length, int priority, Node left, Node right) {
+            this.source = source;
+            this.start = start;
+            this.length = length;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.totalLength = length(left) + length + length(right);
+        }
+
+        Node withChildren(Node left, Node right) {
+            return new Node(source, start, length, priority, left, right);
+        }
+    }
+
+    static long length(Node node) {
+        return node == null ? 0 : node.totalLength;
+    }
+
+    static Node piece(String text) {
+        return text.isEmpty() ? null
+                : new Node(text, 0, text.length(), ThreadLocalRandom.current().nextInt(), null, null);
+    }
+
+    // Splits into [0, position) and [position, end)
+    static Node[] split(Node node, long position) {
+        if (node == null) {
+            return new Node[] {null, null};
+        }
+        long leftLength = length(node.left);
+        if (position <= leftLength) {
+            Node[] parts = split(node.left, position);
+            return new Node[] {parts[0], node.withChildren(parts[1], node.right)};
+        }
+        long pieceEnd = leftLength + node.length;
+        if (position >= pieceEnd) {
+            Node[] parts = split(node.right, position - pieceEnd);
+            return new Node[] {node.withChildren(node.left, parts[0]), parts[1]};
+        }
+        // Split inside this piece; both halves keep its priority, so the heap order holds
+        int cut = (int) (position - leftLength);
+        Node head = new Node(node.source, node.start, cut, node.priority, node.left, null);
+        Node tail = new Node(node.source, node.start + cut, node.length - cut, node.priority, null, node.right);
+        return new Node[] {head, tail};
+    }
+
+    static Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority >= b.priority) {
+            return a.withChildren(a.left, merge(a.right, b));
+        }
+        return b.withChildren(merge(a, b.left), b.right);
+    }
+
+    static char charAt(Node node, long index) {
+        while (true) {
+            long leftLength = length(node.left);
+            if (index < leftLength) {
+                node = node.left;
+            } else if (index < leftLength + node.length) {
+                return node.source.charAt(node.start + (int) (index - leftLength));
+            } else {
+                index -= leftLength + node.length;
+                node = node.right;
+            }
+        }
+    }
+
+    static void appendTo(Node node, StringBuilder out) {
+        if (node != null) {
+            appendTo(node.left, out);
+            out.append(node.source, node.start, node.start + node.length);
+            appendTo(node.right, out);
+        }
+    }
+}
+
+// Memento holding a tree root; shares every node with the live document
+public class Memento {
+    private final PieceTree.Node root;
+
+    Memento(PieceTree.Node root) {
+        this.root = root;
+    }
+
+    PieceTree.Node getRoot() {
+        return root;
+    }
+}
+
+// Originator
+public class TextWindow {
+    private PieceTree.Node root;
+
+    public TextWindow() {
+    }
+
+    public TextWindow(String initialText) {
+        this.root = PieceTree.piece(initialText);
+    }
+
+    public void addText(String text) {
+        insert(length(), text);
+    }
+
+    public void insert(long offset, String text) {
+        PieceTree.Node[] parts = PieceTree.split(root, offset);
+        root = PieceTree.merge(PieceTree.merge(parts[0], PieceTree.piece(text)), parts[1]);
+    }
+
+    public void delete(long offset, long length) {
+        PieceTree.Node[] head = PieceTree.split(root, offset);
+        PieceTree.Node[] tail = PieceTree.split(head[1], length);
+        root = PieceTree.merge(head[0], tail[1]);
+    }
+
+    public char charAt(long index) {
+        return PieceTree.charAt(root, index);
+    }
+
+    public long length() {
+        return PieceTree.length(root);
+    }
+
+    public Memento save() {
+        return new Memento(root);
+    }
+
+    public void restore(Memento memento) {
+        this.root = memento.getRoot();
+    }
+
+    public String getText() {
+        StringBuilder out = new StringBuilder((int) Math.min(length(), Integer.MAX_VALUE));
+        PieceTree.appendTo(root, out);
+        return out.toString();
+    }
+}
+```
+
+The caretaker does not change. `TextEditor` from the original example still pushes `textWindow.save()` after each write, but each push now costs one small object instead of a copy of the document.
+
+The benchmark loads a 100 MB document and applies edits at random positions. It compares the `StringBuilder` window with the piece-table window, including a `save()` after every edit, as `TextEditor` does:
+
+```java
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class TextBufferBenchmark {
+    private static final int DOCUMENT_SIZE = 100 << 20;
+
+    private StringBuilder builder;
+    private TextWindow pieceWindow;
+    private SplittableRandom random;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        String document = "a".repeat(DOCUMENT_SIZE);
+        builder = new StringBuilder(document);
+        pieceWindow = new TextWindow(document);
+        random = new SplittableRandom(42);
+    }
+
+    @Benchmark
+    public Object stringBuilderInsertAndSave() {
+        builder.insert(random.nextInt(builder.length()), "xyz");
+        return builder.toString(); // what save() does today
+    }
+
+    @Benchmark
+    public Object pieceTableInsertAndSave() {
+        pieceWindow.insert(random.nextLong(pieceWindow.length()), "xyz");
+        return pieceWindow.save();
+    }
+
+    @Benchmark
+    public Object pieceTableDelete() {
+        long offset = random.nextLong(pieceWindow.length() - 16);
+        pieceWindow.delete(offset, 16);
+        return pieceWindow.save();
+    }
+}
+```
+
+In this code:
+
+- `PieceTree.Node` is immutable. `split` and `merge` return new nodes only along the path they walk, and every other subtree is shared. Two versions of a 100 MB document that differ by one edit share almost all of their nodes.
+- Splitting a piece creates two nodes over the same `source` string, so the 100 MB original is never copied. Typed text becomes new small sources.
+- `insert` is `split` plus two `merge`s, and `delete` is two `split`s plus one `merge`. All of them are O(log n) expected in the number of pieces, whatever the document size.
+- `Memento` now holds a root instead of a `String`, and `save()`/`restore()` are O(1). The caretaker and the `TextEditor` API are unchanged.
+- `getText()` is still O(n), because it builds the full string. Rendering code should read visible ranges with `charAt` or an in-order walk rather than calling `getText()` per frame.
+- After millions of single-character edits, adjacent small pieces can be coalesced in the background. That is a memory optimization only; the complexity bounds hold without it.
+
+
+
+--------------------------------------------------------------------------------------------------------------------------------------------------------------------
+
+
+
+A Memory-Budgeted Caretaker
+
+The two caretakers above sit at opposite extremes. `Caretaker` keeps one `Memento`, so only one undo step is possible. The `TextEditor`'s `Stack<Memento>` keeps everything until the process runs out of memory. A useful caretaker needs a budget. It should keep the last few states instantly available, keep older states in a cheaper form, and forget the oldest states once the budget is spent.
+
+1. **Hot tier**: The newest mementos live in an `ArrayDeque`. Undoing into this tier is a single `poll()`, well under a microsecond.
+
+2. **Cold tier**: Once the hot tier has more than `hotLimit` mementos, the oldest `batchSize` of them are compressed together into one `CompressedBatch`. Consecutive text snapshots differ only by small edits, so each one is stored relative to the previous one as *(common prefix length, common suffix length, changed middle)*. The whole batch is then deflated.
+
+3. **Budget enforcement**: When hot plus cold bytes exceed `memoryBudget`, the oldest batch is dropped, or merged into a single memento, depending on the `OverflowPolicy`.
+
+4. **Observability**: `stats()` reports counts and byte sizes for both tiers, plus how many mementos were dropped.
+
+```java
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+enum OverflowPolicy {
+    DROP_OLDEST,   // forget the oldest batch entirely
+    MERGE_OLDEST   // collapse the oldest batch to its newest state; earlier states are lost
+}
+
+// Several mementos stored as one compressed block, oldest first
+final class CompressedBatch {
+    final byte[] data;
+    final int count;
+
+    private CompressedBatch(byte[] data, int count) {
+        this.data = data;
+        this.count = count;
+    }
+
+    static CompressedBatch compress(Memento[] oldestFirst) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(
+                new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED)))) {
+            String previous = "";
+            for (Memento memento : oldestFirst) {
+                String text = memento.getSavedText();
+                int prefix = commonPrefix(previous, text);
+                int suffix = commonSuffix(previous, text, prefix);
+                byte[] middle = text.substring(prefix, text.length() - suffix).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(prefix);
+                out.writeInt(suffix);
+                out.writeInt(middle.length);
+                out.write(middle);
+                previous = text;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new CompressedBatch(bytes.toByteArray(), oldestFirst.length);
+    }
+
+    Memento[] decompress() {
+        Memento[] mementos = new Memento[count];
+        try (DataInputStream in = new DataInputStream(
+                new InflaterInputStream(new java.io.ByteArrayInputStream(data)))) {
+            String previous = "";
+            for (int i = 0; i < count; i++) {
+                int prefix = in.readInt();
+                int suffix = in.readInt();
+                byte[] middle = in.readNBytes(in.readInt());
+                String text = previous.substring(0, prefix)
+                        + new String(middle, StandardCharsets.UTF_8)
+                        + previous.substring(previous.length() - suffix);
+                mementos[i] = new Memento(text);
+                previous = text;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return mementos;
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int commonSuffix(String a, String b, int prefix) {
+        int max = Math.min(a.length(), b.length()) - prefix;
+        int i = 0;
+        while (i < max && a.charAt(a.length() - 1 - i) == b.charAt(b.length() - 1 - i)) {
+            i++;
+        }
+        return i;
+    }
+}
+
+// Snapshot of the caretaker's size
+final class HistoryStats {
+    final int hotCount;
+    final long hotBytes;
+    final int coldCount;
+    final long coldBytes;
+    final long dropped;
+
+    HistoryStats(int hotCount, long hotBytes, int coldCount, long coldBytes, long dropped) {
+        this.hotCount = hotCount;
+        this.hotBytes = hotBytes;
+        this.coldCount = coldCount;
+        this.coldBytes = coldBytes;
+        this.dropped = dropped;
+    }
+
+    @Override
+    public String toString() {
+        return "hot=" + hotCount + " (" + hotBytes + " B), cold=" + coldCount
+                + " (" + coldBytes + " B), dropped=" + dropped;
+    }
+}
+
+// Caretaker with a memory budget
+public class BudgetedCaretaker {
+    private final long memoryBudget;
+    private final int hotLimit;
+    private final int batchSize;
+    private final OverflowPolicy policy;
+
+    private final Deque<Memento> hot = new ArrayDeque<>();            // newest first
+    private final Deque<CompressedBatch> cold = new ArrayDeque<>();   // newest first
+    private long hotBytes;
+    private long coldBytes;
+    private int coldCount;
+    private long dropped;
+
+    public BudgetedCaretaker(long memoryBudget, int hotLimit, int batchSize, OverflowPolicy policy) {
+        this.memoryBudget = memoryBudget;
+        this.hotLimit = hotLimit;
+        this.batchSize = batchSize;
+        this.policy = policy;
+    }
+
+    public void saveMemento(Memento memento) {
+        hot.push(memento);
+        hotBytes += sizeOf(memento);
+        if (hot.size() >= hotLimit + batchSize) {
+            compressOldest(batchSize);
+        }
+        enforceBudget();
+    }
+
+    // Returns the most recent memento, or null when the history is empty
+    public Memento undo() {
+        if (hot.isEmpty() && !cold.isEmpty()) {
+            CompressedBatch batch = cold.pop();
+            coldBytes -= batch.data.length;
+            coldCount -= batch.count;
+            for (Memento memento : batch.decompress()) {
+                hot.push(memento);
+                hotBytes += sizeOf(memento);
+            }
+        }
+        Memento memento = hot.poll();
+        if (memento != null) {
+            hotBytes -= sizeOf(memento);
+        }
+        enforceBudget(); // an inflated batch can be larger than its compressed form
+        return memento;
+    }
+
+    public HistoryStats stats() {
+        return new HistoryStats(hot.size(), hotBytes, coldCount, coldBytes, dropped);
+    }
+
+    private void compressOldest(int count) {
+        Memento[] oldestFirst = new Memento[count];
+        for (int i = 0; i < count; i++) {
+            Memento memento = hot.pollLast();
+            hotBytes -= sizeOf(memento);
+            oldestFirst[i] = memento;
+        }
+        CompressedBatch batch = CompressedBatch.compress(oldestFirst);
+        cold.push(batch);
+        coldBytes += batch.data.length;
+        coldCount += batch.count;
+    }
+
+    private void enforceBudget() {
+        while (hotBytes + coldBytes > memoryBudget) {
+            boolean onlyMergedLeft = policy == OverflowPolicy.MERGE_OLDEST
+                    && cold.size() == 1 && cold.peekLast().count == 1;
+            if (cold.isEmpty() || onlyMergedLeft) {
+                if (hot.size() <= 1) {
+                    return; // never drop the newest state, nor the merged oldest one
+                }
+                compressOldest(Math.min(batchSize, hot.size() - 1));
+                continue;
+            }
+            CompressedBatch oldest = pollOldestBatch();
+            if (policy == OverflowPolicy.DROP_OLDEST) {
+                dropped += oldest.count;
+                continue;
+            }
+            if (oldest.count == 1) {
+                // Already merged: fold the next batch into it instead of evicting it
+                dropped += 1;
+                oldest = pollOldestBatch();
+            }
+            Memento[] states = oldest.decompress();
+            CompressedBatch merged = CompressedBatch.compress(new Memento[] {states[states.length - 1]});
+            cold.addLast(merged);
+            coldBytes += merged.data.length;
+            coldCount += merged.count;
+            dropped += oldest.count - 1;
+        }
+    }
+
+    private CompressedBatch pollOldestBatch() {
+        CompressedBatch oldest = cold.pollLast();
+        coldBytes -= oldest.data.length;
+        coldCount -= oldest.count;
+        return oldest;
+    }
+
+    private static long sizeOf(Memento memento) {
+        return 40 + 2L * memento.getSavedText().length();
+    }
+}
+
+// Caretaker client
+public class TextEditor {
+    private TextWindow textWindow;
+    private BudgetedCaretaker history = new BudgetedCaretaker(64L << 20, 32, 64, OverflowPolicy.MERGE_OLDEST);
+
+    public TextEditor(TextWindow textWindow) {
+        this.textWindow = textWindow;
+    }
+
+    public void write(String text) {
+        textWindow.addText(text);
+        history.saveMemento(textWindow.save());
+    }
+
+    public void undo() {
+        Memento memento = history.undo();
+        if (memento != null) {
+            textWindow.restore(memento);
+        }
+    }
+
+    public HistoryStats historyStats() {
+        return history.stats();
+    }
+}
+```
+
+In this code:
+
+- `BudgetedCaretaker` works with the original string-based `Memento` and `TextWindow`. `TextEditor` only swaps its `Stack<Memento>` for the new caretaker.
+- `undo()` inside the hot tier is an `ArrayDeque.poll()` plus one subtraction. It never touches compressed data, so recent undo stays well under a microsecond. Only the first undo past the hot tier pays to inflate one batch. The inflated states count against the budget again, so that undo also enforces it.
+- `CompressedBatch` stores each memento as a diff against the previous one before deflating. That is far better than deflate alone, because deflate's 32 KB window cannot see a previous snapshot of a larger document.
+- `MERGE_OLDEST` gives up fine-grained undo deep in history without emptying it. The oldest batch collapses to a single state, the newest one in that batch, and the states before it are discarded. When the budget is exceeded again, the next batch is folded in the same way instead of the merged state being evicted. So the history always ends in one merged state that is older than everything above it, though not the session's original state. The budget can only stay exceeded if there is nothing left to merge or compress. `DROP_OLDEST` keeps the granularity and shortens the history.
+- `sizeOf` is an estimate (object header plus two bytes per character). It is cheap to compute and accurate enough for a budget. `stats()` returns a copy that can be logged or exported as metrics.
+
+
+
+--------------------------------------------------------------------------------------------------------------------------------------------------------------------
+
+
+
+Spilling Undo History to a Memory-Mapped Log
+
+A memory budget still means the oldest history is eventually lost. For editing sessions that run for days, the caretaker can instead move older mementos out of the heap into a file. It reads them back only when an undo reaches that far.
+
+1. **Hot stack**: The newest `hotLimit` mementos stay on the heap, as before.
+
+2. **MementoLog**: Older mementos are pushed onto a file as `[length][UTF-8 bytes]` records. The file is memory-mapped in fixed 64 MB segments. Writes and reads are plain buffer operations, and the OS decides which pages stay in RAM. The heap holds only the segment buffers, not their contents.
+
+3. **Offset index**: A second mapped file holds a record count followed by one `long` offset per record. A deep undo looks up the last offset and decodes that one record. Nothing else is read.
+
+4. **Commit order and reopening**: A record is written before the count is increased. A crash in between leaves an ignored tail rather than a corrupt entry. Opening an existing log restores the count and the write position, so undo history survives a restart.
+
+```java
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+// Memory-mapped stack of mementos; pop frees the newest record's space for the next push
+public class MementoLog implements AutoCloseable {
+    static final long SEGMENT_SIZE = 64L << 20;
+    private static final int HEADER = Long.BYTES;
+
+    private final FileChannel data;
+    private final FileChannel indexChannel;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private MappedByteBuffer index;
+    private long count;
+    private long tail;
+
+    public MementoLog(Path directory) throws IOException {
+        data = FileChannel.open(directory.resolve("mementos.log"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexChannel = FileChannel.open(directory.resolve("mementos.idx"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long indexSize = Math.max(indexChannel.size(), HEADER + 1024L * Long.BYTES);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+        count = index.getLong(0);
+        if (count > 0) {
+            long last = offsetAt(count - 1);
+            tail = last + Integer.BYTES + segment(last).getInt(positionIn(last));
+        }
+    }
+
+    public long size() {
+        return count;
+    }
+
+    public void push(Memento memento) {
+        byte[] bytes = memento.getSavedText().getBytes(StandardCharsets.UTF_8);
+        long recordSize = Integer.BYTES + bytes.length;
+        if (recordSize > SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Memento of " + bytes.length + " bytes exceeds a log segment");
+        }
+        long offset = tail;
+        if (offset / SEGMENT_SIZE != (offset + recordSize - 1) / SEGMENT_SIZE) {
+            offset = (offset / SEGMENT_SIZE + 1) * SEGMENT_SIZE; // records never cross segments
+        }
+        MappedByteBuffer segment = segment(offset);
+        int position = positionIn(offset);
+        segment.putInt(position, bytes.length);
+        segment.put(position + Integer.BYTES, bytes);
+
+        ensureIndexCapacity(count + 1);
+        index.putLong((int) (HEADER + count * Long.BYTES), offset);
+        count++;
+        index.putLong(0, count); // commit point
+        tail = offset + recordSize;
+    }
+
+    // Removes and returns the newest memento, or null when the log is empty
+    public Memento pop() {
+        if (count == 0) {
+            return null;
+        }
+        long offset = offsetAt(count - 1);
+        MappedByteBuffer segment = segment(offset);
+        int position = positionIn(offset);
+        byte[] bytes = new byte[segment.getInt(position)];
+        segment.get(position + Integer.BYTES, bytes);
+        count--;
+        index.putLong(0, count);
+        tail = offset;
+        return new Memento(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    public void force() {
+        for (MappedByteBuffer segment : segments) {
+            if (segment != null) {
+                segment.force();
+            }
+        }
+        index.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        data.close();
+        indexChannel.close();
+    }
+
+    private long offsetAt(long record) {
+        return index.getLong((int) (HEADER + record * Long.BYTES));
+    }
+
+    private static int positionIn(long offset) {
+        return (int) (offset % SEGMENT_SIZE);
+    }
+
+    private MappedByteBuffer segment(long offset) {
+        int number = (int) (offset / SEGMENT_SIZE);
+        while (segments.size() <= number) {
+            segments.add(null);
+        }
+        MappedByteBuffer segment = segments.get(number);
+        if (segment == null) {
+            try {
+                segment = data.map(FileChannel.MapMode.READ_WRITE, number * SEGMENT_SIZE, SEGMENT_SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            segments.set(number, segment);
+        }
+        return segment;
+    }
+
+    private void ensureIndexCapacity(long records) {
+        long needed = HEADER + records * Long.BYTES;
+        if (needed > index.capacity()) {
+            try {
+                index.force();
+                index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, index.capacity() * 2L);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
+
+// Caretaker that keeps recent mementos on the heap and spills the rest
+public class SpillingCaretaker implements AutoCloseable {
+    private final Deque<Memento> hot = new ArrayDeque<>(); // newest first
+    private final int hotLimit;
+    private final MementoLog log;
+
+    public SpillingCaretaker(Path directory, int hotLimit) throws IOException {
+        this.hotLimit = hotLimit;
+        this.log = new MementoLog(directory);
+    }
+
+    public void saveMemento(Memento memento) {
+        hot.push(memento);
+        if (hot.size() > hotLimit) {
+            log.push(hot.pollLast());
+        }
+    }
+
+    public Memento undo() {
+        Memento memento = hot.poll();
+        return memento != null ? memento : log.pop();
+    }
+
+    public long size() {
+        return hot.size() + log.size();
+    }
+
+    // Spills the hot stack too, so the full history is on disk for the next session
+    @Override
+    public void close() throws IOException {
+        while (!hot.isEmpty()) {
+            log.push(hot.pollLast());
+        }
+        log.close();
+    }
+}
+
+// Client code
+public class SpillingDemo {
+    public static void main(String[] args) throws IOException {
+        Path directory = Path.of(args[0]);
+        TextWindow window = new TextWindow();
+
+        try (SpillingCaretaker history = new SpillingCaretaker(directory, 100)) {
+            for (int i = 0; i < 1_000; i++) { // every memento is the full text, about 5 MB in total
+                window.addText("line " + i + "\n");
+                history.saveMemento(window.save());
+            }
+        }
+
+        // After a restart the whole history is still there
+        try (SpillingCaretaker history = new SpillingCaretaker(directory, 100)) {
+            System.out.println("Undo steps available: " + history.size());
+            Memento previous = history.undo();
+            window.restore(previous);
+        }
+    }
+}
+```
+
+In this code:
+
+- `MementoLog` is a stack on disk, not an append-only log. `push` writes after the newest record, and `pop` moves the write position back, so the next push overwrites the popped record. Records below the top of the stack are never modified.
+- The count in the index header is the single commit point. A memento is part of the history only after its record and index entry are written. Reopening never exposes a half-written record.
+- Records never cross a segment boundary, so every record is read with one absolute `get` from one mapping. The only bytes copied to the heap are those of the memento being restored.
+- `SpillingCaretaker` keeps the undo API of the earlier caretakers. Recent undo is an `ArrayDeque.poll()`. Deeper undo costs one page fault, at worst, plus the decoding.
+- Mapped writes reach the page cache right away and survive a process crash. To survive power loss, call `force()` (for example when the editor is idle), since the OS otherwise writes dirty pages back on its own schedule.
+- Each mapped segment takes virtual address space, not heap. On 64-bit JVMs, keeping thousands of segments mapped is fine.
+
+
+
+--------------------------------------------------------------------------------------------------------------------------------------------------------------------
+
+
+
+Lock-Free Undo and Redo
+
+`TextEditor` stores its history in `java.util.Stack`, a legacy class with every method `synchronized`. Yet the editor is still not thread-safe. `write` calls `textWindow.addText` and `textSnapshots.push` as two separate steps, so two threads can interleave them. An undo can then restore a state that never existed. The editor also has no redo.
+
+Adding locks around `write` and `undo` would fix correctness, but every editing thread would queue on one monitor. A lock-free design instead keeps the whole editor state in one immutable object and changes it with compare-and-set:
+
+1. **EditorState**: An immutable triple of the current memento, the undo stack and the redo stack. The stacks are *persistent linked lists*, where push and pop create or drop one node and share the rest. The mementos come from the piece-table `TextWindow` of the earlier section. Each one is a tree root that shares all unchanged nodes with its neighbours, so building a new state costs one O(log n) edit plus O(1) bookkeeping.
+
+2. **Single atomic reference**: `write`, `undo` and `redo` read the current state, compute the next one and install it with `compareAndSet`. If another thread got there first, the operation retries against the newer state. No thread ever blocks.
+
+3. **Ordering guarantee**: Each operation takes effect at the moment its CAS succeeds. All threads observe one total order of operations, and each operation's effect appears somewhere between its call and its return (linearizability). Undo always reverses the latest write or redo in that order, and redo reapplies the latest undo.
+
+4. **Redo rule**: A new `write` clears the redo stack, as in any editor.
+
+```java
+import java.util.concurrent.atomic.AtomicReference;
+
+// Persistent stack node; push and pop share the tail
+final class MementoStack {
+    static final MementoStack EMPTY = new MementoStack(null, null, 0);
+
+    final Memento head;
+    final MementoStack tail;
+    final int size;
+
+    private MementoStack(Memento head, MementoStack tail, int size) {
+        this.head = head;
+        this.tail = tail;
+        this.size = size;
+    }
+
+    MementoStack push(Memento memento) {
+        return new MementoStack(memento, this, size + 1);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+}
+
+// Immutable editor state
+final class EditorState {
+    final Memento current;
+    final MementoStack undo;
+    final MementoStack redo;
+
+    EditorState(Memento current, MementoStack undo, MementoStack redo) {
+        this.current = current;
+        this.undo = undo;
+        this.redo = redo;
+    }
+}
+
+// Caretaker with lock-free undo and redo
+public class ConcurrentTextEditor {
+    private final AtomicReference<EditorState> state;
+
+    public ConcurrentTextEditor(TextWindow textWindow) {
+        state = new AtomicReference<>(
+                new EditorState(textWindow.save(), MementoStack.EMPTY, MementoStack.EMPTY));
+    }
+
+    public void write(String text) {
+        EditorState before;
+        EditorState after;
+        do {
+            before = state.get();
+            // The originator applies the edit; a window confined to this attempt keeps it thread-safe
+            TextWindow window = new TextWindow();
+            window.restore(before.current);
+            window.addText(text);
+            after = new EditorState(window.save(), before.undo.push(before.current), MementoStack.EMPTY);
+        } while (!state.compareAndSet(before, after));
+    }
+
+    public boolean undo() {
+        EditorState before;
+        EditorState after;
+        do {
+            before = state.get();
+            if (before.undo.isEmpty()) {
+                return false;
+            }
+            after = new EditorState(before.undo.head, before.undo.tail, before.redo.push(before.current));
+        } while (!state.compareAndSet(before, after));
+        return true;
+    }
+
+    public boolean redo() {
+        EditorState before;
+        EditorState after;
+        do {
+            before = state.get();
+            if (before.redo.isEmpty()) {
+                return false;
+            }
+            after = new EditorState(before.redo.head, before.undo.push(before.current), before.redo.tail);
+        } while (!state.compareAndSet(before, after));
+        return true;
+    }
+
+    public String getText() {
+        TextWindow window = new TextWindow();
+        window.restore(state.get().current);
+        return window.getText();
+    }
+
+    // Copies the latest state into a TextWindow owned by the calling thread (e.g. the UI thread)
+    public void renderTo(TextWindow textWindow) {
+        textWindow.restore(state.get().current);
+    }
+}
+```
+
+The contention benchmark runs 8 threads calling `write`/`undo` on one shared editor. It compares the lock-free editor with the `Stack` of mementos that `TextEditor` uses. For a fair comparison, the stack and its `TextWindow` are guarded by one lock, because that is the minimum needed to make them correct. Both sides also take the snapshot *before* the write, so each write/undo pair returns the text to where it started. (`TextEditor.write` snapshots after the edit, so its undo never shrinks the text, and the cost per operation would keep rising over the run.)
+
+```java
+import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UndoContentionBenchmark {
+    private TextWindow stackWindow;
+    private Stack<Memento> stackSnapshots;
+    private ConcurrentTextEditor lockFreeEditor;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        stackWindow = new TextWindow();
+        stackSnapshots = new Stack<>();
+        lockFreeEditor = new ConcurrentTextEditor(new TextWindow());
+    }
+
+    @Benchmark
+    @Group("stack")
+    @GroupThreads(8)
+    public void stackWriteUndo() {
+        synchronized (stackSnapshots) {
+            stackSnapshots.push(stackWindow.save());
+            stackWindow.addText("x");
+        }
+        synchronized (stackSnapshots) {
+            if (!stackSnapshots.isEmpty()) {
+                stackWindow.restore(stackSnapshots.pop());
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("lockFree")
+    @GroupThreads(8)
+    public void lockFreeWriteUndo() {
+        lockFreeEditor.write("x");
+        lockFreeEditor.undo();
+    }
+}
+```
+
+In this code:
+
+- `EditorState` is the originator's state and both caretaker stacks in one object. The state can therefore never be seen half-updated. Either all three parts change or none do.
+- `MementoStack` is a persistent cons list. `push` allocates one node, `pop` is a field read, and old states held by other threads stay valid.
+- A failed CAS means another operation was linearized first. The retry recomputes from the newer state, which keeps the ordering guarantee.
+- `write` never builds a memento itself. Each attempt restores a private `TextWindow` from the current memento, lets the originator apply the edit, and CASes in the memento that `save()` returns. The originator stays the only code that knows what a memento contains. `TextWindow` itself stays single-threaded: every window is confined to one attempt, or to the thread that calls `renderTo`.
+- With the piece-table `TextWindow`, `restore` and `save` are O(1), and `addText` copies only the O(log n) nodes on the path it changes. So a write costs O(log n) per CAS attempt, not a copy of the document, and a failed attempt throws away only that path. `renderTo` is O(1). Only `getText()` walks the tree to build a `String`.
+- Under very heavy write contention, CAS retries waste work. If profiling shows that, the single-writer variant is simple: producers enqueue operations, and one thread applies them against the same `EditorState`.
+
+
+
+--------------------------------------------------------------------------------------------------------------------------------------------------------------------
+
+
+
+Persistent State for O(1) Mementos
+
+The first `Originator` keeps its state in one `String`, so `createMemento()` just shares an immutable reference. Real originators hold many fields, for example a `Map<String, Object>` of document properties, cursor positions and settings. The only safe memento of a mutable map is a copy, which makes every snapshot O(n) in the number of fields.
+
+The solution is to make the state itself immutable. It stays cheap to update if the data structure uses *structural sharing*. A hash array mapped trie (HAMT), the structure behind Clojure's and Scala's immutable maps, fits this well:
+
+1. **Trie of 32-way nodes**: Each level consumes 5 bits of the key's hash. A node stores a 32-bit bitmap of which slots are used and a compact array with only those slots. A map with a million entries is about four levels deep.
+
+2. **Path copying**: `put` and `remove` copy only the nodes from the root to the changed slot, at most about seven small arrays. Every other node is shared with the previous version.
+
+3. **O(1) mementos**: The originator keeps a reference to the current root. `createMemento()` stores that reference, and `restoreMemento()` puts it back. A memento costs nothing when created. Over time it costs only the nodes that later edits copy.
+
+```java
+import java.util.function.BiConsumer;
+
+// Immutable hash array mapped trie
+public final class PersistentMap<K, V> {
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(BitmapNode.EMPTY, 0);
+    private static final Object NOT_FOUND = new Object();
+
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        Object value = root.find(key.hashCode(), 0, key);
+        return value == NOT_FOUND ? null : (V) value;
+    }
+
+    public boolean containsKey(K key) {
+        return root.find(key.hashCode(), 0, key) != NOT_FOUND;
+    }
+
+    public PersistentMap<K, V> put(K key, V value) {
+        boolean[] added = new boolean[1];
+        Node newRoot = root.put(key.hashCode(), 0, key, value, added);
+        return newRoot == root ? this : new PersistentMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    public PersistentMap<K, V> remove(K key) {
+        if (!containsKey(key)) {
+            return this;
+        }
+        Node newRoot = root.remove(key.hashCode(), 0, key);
+        return new PersistentMap<>(newRoot == null ? BitmapNode.EMPTY : newRoot, size - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+    private interface Node {
+        Object find(int hash, int shift, Object key);
+
+        Node put(int hash, int shift, Object key, Object value, boolean[] added);
+
+        Node remove(int hash, int shift, Object key);
+
+        void forEach(BiConsumer<Object, Object> action);
+    }
+
+    // Slots are [key, value] pairs; a null key means the value is a child node
+    private static final class BitmapNode implements Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override
+        public Object find(int hash, int shift, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) {
+                return NOT_FOUND;
+            }
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            if (k == null) {
+                return ((Node) array[i + 1]).find(hash, shift + 5, key);
+            }
+            return key.equals(k) ? array[i + 1] : NOT_FOUND;
+        }
+
+        @Override
+        public Node put(int hash, int shift, Object key, Object value, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                Object[] copy = new Object[array.length + 2];
+                System.arraycopy(array, 0, copy, 0, i);
+                copy[i] = key;
+                copy[i + 1] = value;
+                System.arraycopy(array, i, copy, i + 2, array.length - i);
+                return new BitmapNode(bitmap | bit, copy);
+            }
+            Object k = array[i];
+            Object v = array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).put(hash, shift + 5, key, value, added);
+                return child == v ? this : with(i + 1, child);
+            }
+            if (key.equals(k)) {
+                return v == value ? this : with(i + 1, value);
+            }
+            added[0] = true;
+            Node child = pair(shift + 5, k, v, hash, key, value);
+            BitmapNode node = with(i + 1, child);
+            node.array[i] = null;
+            return node;
+        }
+
+        @Override
+        public Node remove(int hash, int shift, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            if (k == null) {
+                Node child = ((Node) array[i + 1]).remove(hash, shift + 5, key);
+                if (child == array[i + 1]) {
+                    return this;
+                }
+                return child == null ? without(bit, i) : with(i + 1, child);
+            }
+            return key.equals(k) ? without(bit, i) : this;
+        }
+
+        @Override
+        public void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).forEach(action);
+                } else {
+                    action.accept(array[i], array[i + 1]);
+                }
+            }
+        }
+
+        private BitmapNode with(int index, Object value) {
+            Object[] copy = array.clone();
+            copy[index] = value;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        private BitmapNode without(int bit, int i) {
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, i);
+            System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+            return new BitmapNode(bitmap ^ bit, copy);
+        }
+
+        private static Node pair(int shift, Object k1, Object v1, int h2, Object k2, Object v2) {
+            int h1 = k1.hashCode();
+            if (h1 == h2) {
+                return new CollisionNode(h1, new Object[] {k1, v1, k2, v2});
+            }
+            boolean[] ignored = new boolean[1];
+            return EMPTY.put(h1, shift, k1, v1, ignored).put(h2, shift, k2, v2, ignored);
+        }
+    }
+
+    // Keys whose full 32-bit hashes are equal
+    private static final class CollisionNode implements Node {
+        final int hash;
+        final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        @Override
+        public Object find(int hash, int shift, Object key) {
+            int i = indexOf(key);
+            return i < 0 ? NOT_FOUND : array[i + 1];
+        }
+
+        @Override
+        public Node put(int hash, int shift, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) {
+                // Push this node one level down behind a bitmap node
+                int bit = 1 << ((this.hash >>> shift) & 31);
+                return new BitmapNode(bit, new Object[] {null, this}).put(hash, shift, key, value, added);
+            }
+            int i = indexOf(key);
+            if (i >= 0) {
+                if (array[i + 1] == value) {
+                    return this;
+                }
+                Object[] copy = array.clone();
+                copy[i + 1] = value;
+                return new CollisionNode(hash, copy);
+            }
+            added[0] = true;
+            Object[] copy = new Object[array.length + 2];
+            System.arraycopy(array, 0, copy, 0, array.length);
+            copy[array.length] = key;
+            copy[array.length + 1] = value;
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        public Node remove(int hash, int shift, Object key) {
+            int i = indexOf(key);
+            if (i < 0) {
+                return this;
+            }
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, i);
+            System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        public void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                action.accept(array[i], array[i + 1]);
+            }
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
+
+// Originator
+class Originator {
+    private PersistentMap<String, Object> fields = PersistentMap.empty();
+
+    public void setField(String name, Object value) {
+        fields = fields.put(name, value);
+    }
+
+    public void clearField(String name) {
+        fields = fields.remove(name);
+    }
+
+    public Object getField(String name) {
+        return fields.get(name);
+    }
+
+    public Memento createMemento() {
+        return new Memento(fields);
+    }
+
+    public void restoreMemento(Memento memento) {
+        fields = memento.getState();
+    }
+}
+
+// Memento
+class Memento {
+    private final PersistentMap<String, Object> state;
+
+    public Memento(PersistentMap<String, Object> state) {
+        this.state = state;
+    }
+
+    public PersistentMap<String, Object> getState() {
+        return state;
+    }
+}
+
+// Example usage
+public class Main {
+    public static void main(String[] args) {
+        Originator originator = new Originator();
+        Caretaker caretaker = new Caretaker();
+
+        for (int i = 0; i < 1_000_000; i++) {
+            originator.setField("field" + i, i);
+        }
+        caretaker.saveMemento(originator.createMemento()); // O(1), shares all million entries
+
+        originator.setField("field42", "changed");          // copies ~4 nodes
+        originator.clearField("field7");
+
+        originator.restoreMemento(caretaker.getMemento());
+        System.out.println("field42 = " + originator.getField("field42")); // 42
+        System.out.println("field7 = " + originator.getField("field7"));   // 7
+    }
+}
+```
+
+In this code:
+
+- `PersistentMap` never changes a node after creating it. `put` and `remove` return a new map that shares every untouched subtree with the old one, and the old map stays fully usable.
+- `BitmapNode` stores only occupied slots. The position of a slot is the number of set bits below its bit (`Integer.bitCount`), so sparse nodes waste no memory.
+- `CollisionNode` handles keys whose full hashes are equal. With a good `hashCode()` this is rare, but without it the map would be incorrect.
+- `Originator.createMemento()` and `restoreMemento()` copy one reference each. The original `Caretaker` works unchanged.
+- Each memento's real cost is paid by later edits. One `setField` copies at most one small array per trie level, about seven arrays of up to 64 slots. So a history of m edits costs O(m log₃₂ n) memory, not O(m · n).
+- For list-shaped state, for example a document's lines, the matching structure is a persistent vector, a 32-way trie indexed by position. It gives the same O(1) snapshots and path-copy updates.
+
+
+
+--------------------------------------------------------------------------------------------------------------------------------------------------------------------
+
+
+
+Non-Blocking Copy-on-Write Snapshots
+
+`save()` and `createMemento()` run on the thread that changes the originator, and they do not return until the copy is finished. For a few kilobytes this is invisible. For an originator holding gigabytes of state (a simulation grid, an in-memory table), each checkpoint freezes the owning thread for seconds.
+
+Operating systems have long solved this with `fork()` and copy-on-write pages, and databases and Redis use the same trick for snapshots. We can do it inside the JVM:
+
+1. **Paged state**: The originator stores its data in fixed-size pages (64 KB here) instead of one huge array.
+
+2. **Freezing**: `snapshotAsync()` copies only the array of page *references*, which takes microseconds even for many gigabytes. It also starts a new snapshot *epoch*, so every page counts as shared until it is copied or the snapshot finishes. That is the only work done on the calling thread.
+
+3. **Copy on write**: While the snapshot is being written, the next write to a shared page copies that page first and then writes to the copy. The frozen view keeps the old page, unchanged. Each page is copied at most once per snapshot, and only if it is written before the snapshot finishes.
+
+4. **Background serialization**: A dedicated thread writes the frozen pages to disk and then drops them. The caller gets a `CompletableFuture<PagedMemento>`, which completes when the checkpoint file is durable. The memento refers to that file only.
+
+```java
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Memento naming the checkpoint file the frozen pages were written to
+public class PagedMemento {
+    private final Path file;
+
+    PagedMemento(Path file) {
+        this.file = file;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+}
+
+// Originator with copy-on-write pages; mutated by a single owner thread
+public class PagedOriginator implements AutoCloseable {
+    static final int PAGE_SHIFT = 13;                 // 8192 longs = 64 KB per page
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final long[][] pages;
+    private final int[] copiedIn;             // snapshot epoch in which each page was last made private
+    private int epoch;                        // epoch of the newest snapshot
+    private volatile int completed;           // newest epoch whose pages have been written
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "snapshotter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PagedOriginator(long capacity) {
+        int pageCount = (int) ((capacity + PAGE_SIZE - 1) >>> PAGE_SHIFT);
+        pages = new long[pageCount][];
+        copiedIn = new int[pageCount];
+        for (int i = 0; i < pageCount; i++) {
+            pages[i] = new long[PAGE_SIZE];
+        }
+    }
+
+    public long get(long index) {
+        return pages[(int) (index >>> PAGE_SHIFT)][(int) (index & PAGE_MASK)];
+    }
+
+    public void set(long index, long value) {
+        int page = (int) (index >>> PAGE_SHIFT);
+        if (copiedIn[page] != epoch && completed != epoch) {
+            pages[page] = pages[page].clone(); // the frozen view keeps the old page
+            copiedIn[page] = epoch;
+        }
+        pages[page][(int) (index & PAGE_MASK)] = value;
+    }
+
+    // Freezes the current state in O(pages) reference copies and writes it in the background
+    public CompletableFuture<PagedMemento> snapshotAsync(Path file) {
+        long[][] frozen = pages.clone();
+        int snapshotEpoch = ++epoch;
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                write(frozen, file);
+            } finally {
+                completed = snapshotEpoch; // the frozen pages are no longer read, so writes go in place
+            }
+            return new PagedMemento(file);
+        }, snapshotter);
+    }
+
+    // Reads the checkpoint into fresh pages; pages still frozen by a running snapshot are left alone
+    public void restore(PagedMemento memento) {
+        Path file = memento.getFile();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(PAGE_SIZE * Long.BYTES);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() != (long) pages.length * PAGE_SIZE * Long.BYTES) {
+                throw new IllegalArgumentException("Checkpoint " + file + " does not match this originator's size");
+            }
+            for (int i = 0; i < pages.length; i++) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("Checkpoint " + file + " ended early");
+                    }
+                }
+                buffer.flip();
+                long[] page = new long[PAGE_SIZE];
+                buffer.asLongBuffer().get(page);
+                pages[i] = page;
+                copiedIn[i] = epoch;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        snapshotter.shutdown();
+    }
+
+    private static void write(long[][] frozen, Path file) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(PAGE_SIZE * Long.BYTES);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (long[] page : frozen) {
+                buffer.clear();
+                buffer.asLongBuffer().put(page);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+// Example usage
+public class Main {
+    public static void main(String[] args) throws Exception {
+        try (PagedOriginator originator = new PagedOriginator(256L << 20)) { // 2 GB of longs
+            originator.set(42, 1);
+
+            long start = System.nanoTime();
+            CompletableFuture<PagedMemento> checkpoint = originator.snapshotAsync(Path.of("state.ckpt"));
+            System.out.println("Writer blocked for " + (System.nanoTime() - start) / 1_000 + " µs");
+
+            originator.set(42, 2);            // copies one 64 KB page if the snapshot is still running; it sees 1
+            PagedMemento memento = checkpoint.get();
+
+            originator.restore(memento);
+            System.out.println("Restored value: " + originator.get(42)); // 1
+        }
+    }
+}
+```
+
+In this code:
+
+- The only work `snapshotAsync` does on the owning thread is cloning the page-reference array (32K references for 2 GB) and bumping the epoch. That takes well under a millisecond, whatever the total state size.
+- `set` compares two `int`s per write. Only the first write to each page while a snapshot is being written pays for a 64 KB copy. Once the snapshot thread publishes `completed`, writes go in place again and the frozen array becomes garbage, because the memento does not keep it. So the extra memory is bounded by the pages actually written while the snapshot is in progress.
+- The frozen `long[][]` passes to the snapshot thread through `CompletableFuture.supplyAsync`, which guarantees the thread sees the page contents as they were at freeze time. Those pages are not written while the snapshot reads them, because the owner copies before writing. The volatile write of `completed` happens after the last read, so the owner's in-place writes that follow cannot leak into the checkpoint.
+- The checkpoint is written to a temporary file, forced to disk and then renamed with `ATOMIC_MOVE`. A crash mid-write never leaves a torn checkpoint under the real name.
+- `restore` reads the checkpoint file into freshly allocated pages, so it costs a full read of the state. In exchange, a memento holds no heap at all, and restoring never writes into a page that a running snapshot may still be reading. A memento stays valid after it has been restored, as long as its file is kept.
+- The originator is single-writer by design, as the classic pattern assumes. If several threads must write, protect each page's copy with a CAS on its `copiedIn` epoch.
+
+
+
+--------------------------------------------------------------------------------------------------------------------------------------------------------------------
+
+
+
+Compact Binary Mementos for Crash Recovery
+
+Every caretaker so far keeps its mementos in memory only, apart from the spill log. If the process dies, the undo history and the last checkpoint die with it. Java serialization could write the mementos out, but it produces large output full of class descriptors. It is slow, and reading untrusted data with it is a known security risk. A memento is plain data, so a small, purpose-built binary format serves it better.
+
+The codec below stores a list of the map-based mementos from the persistent `Originator` above:
+
+1. **Header**: A magic number and a format version. A reader can reject foreign files and handle older versions explicitly.
+
+2. **String dictionary**: Field names, and string values, repeat across mementos. Each distinct string is written once, and every use is a small integer id.
+
+3. **Varints**: Integers are written 7 bits per byte, so small numbers take one byte. Signed values are zig-zag encoded first, so small negative numbers stay short too.
+
+4. **CRC32C trailer**: A checksum over the body detects torn writes and bit rot. A damaged checkpoint is rejected, never half-restored.
+
+5. **Atomic checkpoint files**: The bytes go to a temporary file, which is forced to disk and then renamed over the previous checkpoint. After a crash the file on disk is either the old checkpoint or the new one.
+
+```java
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+// Binary encoding for lists of map-based mementos
+public class MementoCodec {
+    private static final int MAGIC = 0x4D454D4F; // "MEMO"
+    private static final byte VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG = 2;
+    private static final byte INT = 3;
+    private static final byte TRUE = 4;
+    private static final byte FALSE = 5;
+    private static final byte DOUBLE = 6;
+
+    // Reused across checkpoints so steady-state encoding allocates little
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final List<String> dictionaryOrder = new ArrayList<>();
+    private byte[] buffer = new byte[64 * 1024];
+    private int length;
+
+    public byte[] encode(List<Memento> mementos) {
+        dictionary.clear();
+        dictionaryOrder.clear();
+        for (Memento memento : mementos) {
+            memento.getState().forEach((name, value) -> {
+                intern(name);
+                if (value instanceof String) {
+                    intern((String) value);
+                }
+            });
+        }
+
+        length = 0;
+        writeInt(MAGIC);
+        writeByte(VERSION);
+        int bodyStart = length;
+        writeVarint(dictionaryOrder.size());
+        for (String s : dictionaryOrder) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(utf8.length);
+            writeBytes(utf8);
+        }
+        writeVarint(mementos.size());
+        for (Memento memento : mementos) {
+            writeVarint(memento.getState().size());
+            memento.getState().forEach((name, value) -> {
+                writeVarint(dictionary.get(name));
+                writeValue(value);
+            });
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer, bodyStart, length - bodyStart);
+        writeInt((int) crc.getValue());
+        return Arrays.copyOf(buffer, length);
+    }
+
+    public List<Memento> decode(byte[] data) {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        if (data.length < 9 || in.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a memento checkpoint");
+        }
+        byte version = in.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported checkpoint version " + version);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(data, 5, data.length - 9);
+        if ((int) crc.getValue() != ByteBuffer.wrap(data, data.length - 4, 4).getInt()) {
+            throw new IllegalArgumentException("Checkpoint checksum mismatch");
+        }
+
+        String[] strings = new String[readVarint(in)];
+        for (int i = 0; i < strings.length; i++) {
+            int size = readVarint(in);
+            strings[i] = new String(data, in.position(), size, StandardCharsets.UTF_8);
+            in.position(in.position() + size);
+        }
+        int count = readVarint(in);
+        List<Memento> mementos = new ArrayList<>(count);
+        for (int m = 0; m < count; m++) {
+            PersistentMap<String, Object> state = PersistentMap.empty();
+            int fields = readVarint(in);
+            for (int f = 0; f < fields; f++) {
+                String name = strings[readVarint(in)];
+                state = state.put(name, readValue(in, strings));
+            }
+            mementos.add(new Memento(state));
+        }
+        return mementos;
+    }
+
+    // Writes to a temporary file, forces it, then atomically replaces the checkpoint
+    public void writeCheckpoint(Path file, List<Memento> mementos) throws IOException {
+        byte[] bytes = encode(mementos);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer src = ByteBuffer.wrap(bytes);
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public List<Memento> readCheckpoint(Path file) throws IOException {
+        return decode(Files.readAllBytes(file));
+    }
+
+    private void intern(String s) {
+        if (!dictionary.containsKey(s)) {
+            dictionary.put(s, dictionaryOrder.size());
+            dictionaryOrder.add(s);
+        }
+    }
+
+    private void writeValue(Object value) {
+        if (value == null) {
+            writeByte(NULL);
+        } else if (value instanceof String) {
+            writeByte(STRING);
+            writeVarint(dictionary.get(value));
+        } else if (value instanceof Long) {
+            writeByte(LONG);
+            writeVarlong(zigZag((Long) value));
+        } else if (value instanceof Integer) {
+            writeByte(INT);
+            writeVarlong(zigZag((Integer) value));
+        } else if (value instanceof Boolean) {
+            writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Double) {
+            writeByte(DOUBLE);
+            writeVarlong(Long.reverseBytes(Double.doubleToRawLongBits((Double) value)));
+        } else {
+            throw new IllegalArgumentException("Unsupported memento value: " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(ByteBuffer in, String[] strings) {
+        byte tag = in.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return strings[readVarint(in)];
+            case LONG:
+                return unZigZag(readVarlong(in));
+            case INT:
+                return (int) unZigZag(readVarlong(in));
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case DOUBLE:
+                return Double.longBitsToDouble(Long.reverseBytes(readVarlong(in)));
+            default:
+                throw new IllegalArgumentException("Unknown value tag " + tag);
+        }
+    }
+
+    private void writeVarint(int value) {
+        writeVarlong(value & 0xFFFFFFFFL);
+    }
+
+    private void writeVarlong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        writeByte((byte) value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        return (int) readVarlong(in);
+    }
+
+    private static long readVarlong(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private void writeInt(int value) {
+        ensureCapacity(4);
+        buffer[length++] = (byte) (value >>> 24);
+        buffer[length++] = (byte) (value >>> 16);
+        buffer[length++] = (byte) (value >>> 8);
+        buffer[length++] = (byte) value;
+    }
+
+    private void writeByte(byte value) {
+        ensureCapacity(1);
+        buffer[length++] = value;
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+}
+
+// Example usage
+public class Main {
+    public static void main(String[] args) throws IOException {
+        Originator originator = new Originator();
+        List<Memento> history = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            originator.setField("cursor", i);
+            originator.setField("mode", i % 2 == 0 ? "insert" : "overwrite");
+            history.add(originator.createMemento());
+        }
+
+        MementoCodec codec = new MementoCodec();
+        Path checkpoint = Path.of("history.ckpt");
+        codec.writeCheckpoint(checkpoint, history);
+
+        // At startup
+        List<Memento> restored = codec.readCheckpoint(checkpoint);
+        originator.restoreMemento(restored.get(restored.size() - 1));
+        System.out.println("cursor = " + originator.getField("cursor")); // 999
+    }
+}
+```
+
+The benchmark compares the codec with Java serialization of the same data, in both directions: `ObjectOutputStream` for encoding and `ObjectInputStream` for decoding. The data goes through as `HashMap`s, since `PersistentMap` is not `Serializable`. Setup prints the encoded size of both formats. Run it with `-prof gc` to compare bytes allocated per checkpoint as well as time:
+
+```java
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MementoCodecBenchmark {
+    private final MementoCodec codec = new MementoCodec();
+    private List<Memento> mementos;
+    private ArrayList<HashMap<String, Object>> maps;
+    private byte[] encoded;
+    private byte[] javaEncoded;
+
+    @Setup
+    public void setup() throws IOException {
+        Originator originator = new Originator();
+        mementos = new ArrayList<>();
+        maps = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            originator.setField("cursor", i);
+            originator.setField("title", "Chapter " + (i / 100));
+            originator.setField("dirty", i % 3 == 0);
+            Memento memento = originator.createMemento();
+            mementos.add(memento);
+            HashMap<String, Object> map = new HashMap<>();
+            memento.getState().forEach(map::put);
+            maps.add(map);
+        }
+        encoded = codec.encode(mementos);
+        javaEncoded = javaSerialize(maps);
+        System.out.printf("binary: %d bytes, Java serialization: %d bytes%n", encoded.length, javaEncoded.length);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return codec.encode(mementos);
+    }
+
+    @Benchmark
+    public List<Memento> binaryDecode() {
+        return codec.decode(encoded);
+    }
+
+    @Benchmark
+    public byte[] javaEncode() throws IOException {
+        return javaSerialize(maps);
+    }
+
+    @Benchmark
+    public Object javaDecode() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(javaEncoded))) {
+            return in.readObject();
+        }
+    }
+
+    private static byte[] javaSerialize(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+}
+```
+
+In this code:
+
+- `MementoCodec.encode` makes two passes. The first builds the dictionary, and the second writes the body into a reused `byte[]`. Apart from the returned copy, the only allocations are one UTF-8 array per *distinct* string.
+- Every field name and repeated string value costs one varint id after its first use. Small integers such as a cursor position take one or two bytes.
+- The format version is checked before anything else is parsed. Adding a value tag or a new section later means bumping `VERSION` and keeping a decoder for version 1.
+- `decode` verifies the CRC before building any memento, so a corrupt checkpoint fails fast with a clear `IllegalArgumentException`.
+- `writeCheckpoint` uses the same write-to-temp, `force` and `ATOMIC_MOVE` steps as the asynchronous snapshot above. Restarting always finds a complete checkpoint.
+- `javaDecode` stops once it has the `HashMap`s, while `binaryDecode` goes on to build `PersistentMap`-backed mementos. So the baseline does slightly less work than the codec on the decode side, which makes the comparison conservative.
+- Decoding rebuilds each `PersistentMap` from scratch. The restored mementos are correct but no longer share structure. If the history is long, decode each memento as a diff against the previous one, and structural sharing comes back as well.